@@ -0,0 +1,109 @@
+/*************************************************************************
+ *  Compilation:  javac AsyncFileReader.java
+ *
+ *  A ReadableByteChannel that reads a file sequentially from a starting
+ *  offset through an AsynchronousFileChannel, keeping a read in flight
+ *  on every buffer but the one being consumed. While the caller works
+ *  on one buffer the next ones are already being filled, so reading
+ *  overlaps with computing instead of alternating with it.
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class AsyncFileReader implements ReadableByteChannel {
+    public static final int BUFFERS = 3;
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    private final AsynchronousFileChannel channel;
+    private final ByteBuffer[] buffers;
+    private final long[] offsets;           // file offset each buffer is read from
+    private final Future<?>[] pending;
+    private long next;                      // file offset of the next read to issue
+    private int current;                    // index of the buffer being consumed
+    private ByteBuffer cur;                 // that buffer, flipped; null before the first
+
+    public AsyncFileReader(Path path, long position) throws IOException {
+        this(path, position, BUFFERS, BUFFER_SIZE);
+    }
+
+    public AsyncFileReader(Path path, long position, int buffers, int bufferSize) throws IOException {
+        if (buffers < 2) throw new IllegalArgumentException("Need at least two buffers");
+        channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        this.buffers = new ByteBuffer[buffers];
+        offsets = new long[buffers];
+        pending = new Future<?>[buffers];
+        next = position;
+        try {
+            for (int i = 0; i < buffers; i++) {
+                this.buffers[i] = ByteBuffer.allocateDirect(bufferSize);
+                issue(i);
+            }
+        } catch (Throwable ex) {            // such as running out of direct memory
+            channel.close();
+            throw ex;
+        }
+        current = buffers - 1;
+    }
+
+    private void issue(int i) {
+        buffers[i].clear();
+        offsets[i] = next;
+        pending[i] = channel.read(buffers[i], next);
+        next += buffers[i].capacity();
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        if ((cur == null || !cur.hasRemaining()) && !advance()) return -1;
+        int k = Math.min(dst.remaining(), cur.remaining());
+        ByteBuffer part = cur.duplicate();
+        part.limit(part.position() + k);
+        dst.put(part);
+        cur.position(cur.position() + k);
+        return k;
+    }
+
+    // hand the buffer just used back for the read after the last one,
+    // then wait for the next buffer; false at the end of the file
+    private boolean advance() throws IOException {
+        if (cur != null) issue(current);
+        current = (current + 1) % buffers.length;
+        ByteBuffer b = buffers[current];
+        await(pending[current]);
+        while (b.hasRemaining()) {          // finish a short read
+            Future<Integer> rest = channel.read(b, offsets[current] + b.position());
+            if (await(rest) < 0) break;
+        }
+        b.flip();
+        cur = b;
+        return b.hasRemaining();
+    }
+
+    static <T> T await(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,161 @@
+/*************************************************************************
+ *  Compilation:  javac AsyncFileWriter.java
+ *  Dependencies: AsyncFileReader.java
+ *
+ *  A write-only SeekableByteChannel that writes a file through an
+ *  AsynchronousFileChannel. Writes are copied into one of a few
+ *  buffers; a full buffer is written in the background while the
+ *  caller fills the next, and the caller only waits when it comes
+ *  round to a buffer whose write has not finished. Seeking and
+ *  truncating work as for a FileChannel, so an LZWFile can be written
+ *  through it; force and close wait for every write.
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Future;
+
+public class AsyncFileWriter implements SeekableByteChannel {
+    public static final int BUFFERS = 3;
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    private final AsynchronousFileChannel channel;
+    private final ByteBuffer[] buffers;
+    private final long[] offsets;           // file offset each buffer is written to
+    private final Future<?>[] pending;
+    private int current;                    // index of the buffer being filled
+    private long position;
+    private long size;
+
+   /**
+     * Write to the existing file at path, starting at position.
+     */
+    public AsyncFileWriter(Path path, long position) throws IOException {
+        this(path, position, BUFFERS, BUFFER_SIZE);
+    }
+
+    public AsyncFileWriter(Path path, long position, int buffers, int bufferSize) throws IOException {
+        if (buffers < 2) throw new IllegalArgumentException("Need at least two buffers");
+        channel = AsynchronousFileChannel.open(path, StandardOpenOption.WRITE);
+        this.buffers = new ByteBuffer[buffers];
+        offsets = new long[buffers];
+        pending = new Future<?>[buffers];
+        try {
+            for (int i = 0; i < buffers; i++)
+                this.buffers[i] = ByteBuffer.allocateDirect(bufferSize);
+            size = channel.size();
+        } catch (Throwable ex) {            // such as running out of direct memory
+            channel.close();
+            throw ex;
+        }
+        this.position = position;
+        offsets[0] = position;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+            ByteBuffer b = buffers[current];
+            if (!b.hasRemaining()) {
+                submit();
+                b = buffers[current];
+            }
+            int k = Math.min(src.remaining(), b.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + k);
+            b.put(part);
+            src.position(src.position() + k);
+            position += k;
+        }
+        size = Math.max(size, position);
+        return n;
+    }
+
+    // start writing the current buffer and move on to the next one,
+    // waiting for its previous write if that is still going
+    private void submit() throws IOException {
+        ByteBuffer b = buffers[current];
+        if (b.position() > 0) {
+            b.flip();
+            pending[current] = channel.write(b, offsets[current]);
+            current = (current + 1) % buffers.length;
+            finish(current);
+        }
+        buffers[current].clear();
+        offsets[current] = position;
+    }
+
+    // wait for the write of buffer i, completing it if it was short
+    private void finish(int i) throws IOException {
+        if (pending[i] == null) return;
+        AsyncFileReader.await(pending[i]);
+        pending[i] = null;
+        ByteBuffer b = buffers[i];
+        while (b.hasRemaining())
+            AsyncFileReader.await(channel.write(b, offsets[i] + b.position()));
+    }
+
+    // write everything buffered and wait for it
+    private void drain() throws IOException {
+        submit();
+        for (int i = 0; i < buffers.length; i++)
+            finish(i);
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public AsyncFileWriter position(long newPosition) throws IOException {
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+        if (newPosition != position) {
+            submit();
+            position = newPosition;
+            offsets[current] = position;
+        }
+        return this;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public AsyncFileWriter truncate(long newSize) throws IOException {
+        drain();
+        channel.truncate(newSize);
+        size = Math.min(size, newSize);
+        if (position > newSize) position(newSize);
+        return this;
+    }
+
+   /**
+     * Wait for every write, then force them to the device.
+     */
+    public void force(boolean metaData) throws IOException {
+        drain();
+        channel.force(metaData);
+    }
+
+    public int read(ByteBuffer dst) {
+        throw new NonReadableChannelException();
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        if (!channel.isOpen()) return;
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -7,12 +7,26 @@
  *  % java BinaryStdIn < input.jpg > output.jpg
  *  % diff input.jpg output.jpg
  *
+ *  Bytes are read from the channel in blocks into a ByteBuffer and
+ *  shifted into a 64-bit bit buffer, so reading r bits is a shift and
+ *  a mask with an occasional refill. The buffer can be supplied by the
+ *  caller (heap or direct, any size) and reused across instances, or
+ *  the input can be a ByteBuffer already in memory; nothing on the read
+ *  path takes a lock, and an I/O failure is thrown as an
+ *  UncheckedIOException.
+ *
  *************************************************************************/
 
 
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.BufferedInputStream;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  *  <i>Binary standard input</i>. This class provides methods for reading
@@ -27,21 +41,94 @@ import java.io.InputStream;
  *  byte first) order.
  */
 public class BinaryStdIn {
-    private final BufferedInputStream in;
-    private static final int EOF = -1;    // end of file
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    private final ReadableByteChannel channel;  // null when reading stream or memory
+    private final InputStream stream;           // null when reading channel or memory
+    private final ByteBuffer buf;               // bytes not yet moved into buffer
 
-    private int buffer;            // one character buffer
+    private long buffer;           // bits not yet read, right-aligned
     private int N;                 // number of bits left in buffer
 
-    // No Singleton
+   /**
+     * Read from inputStream; a FileInputStream is read through its channel.
+     */
     public BinaryStdIn(InputStream inputStream) {
-      in = new BufferedInputStream(inputStream);
-      fillBuffer();
+      if (inputStream instanceof FileInputStream) {
+        channel = ((FileInputStream) inputStream).getChannel();
+        stream = null;
+      } else {
+        channel = null;
+        stream = inputStream;
+      }
+      buf = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+      buf.limit(0);
     }
 
+    public BinaryStdIn(ReadableByteChannel channel) {
+      this(channel, ByteBuffer.allocate(DEFAULT_BUFFER_SIZE));
+    }
+
+   /**
+     * Read from channel, a block of buffer's capacity at a time. The
+     * buffer may be direct and is set to big-endian order.
+     */
+    public BinaryStdIn(ReadableByteChannel channel, ByteBuffer buffer) {
+      if (buffer.capacity() < 8) throw new IllegalArgumentException("Buffer too small");
+      this.channel = channel;
+      stream = null;
+      buf = buffer;
+      buf.clear().limit(0);
+      buf.order(ByteOrder.BIG_ENDIAN);
+    }
+
+   /**
+     * Read the remaining bytes of data, without copying them.
+     */
+    public BinaryStdIn(ByteBuffer data) {
+      channel = null;
+      stream = null;
+      buf = data.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    // top buffer up to at least 57 bits, or as many as the input has left
     private void fillBuffer() {
-        try { buffer = in.read(); N = 8; }
-        catch (IOException e) { System.out.println("EOF"); buffer = EOF; N = -1; }
+        while (N <= 56) {
+            if (!buf.hasRemaining() && !fillBuf()) return;
+            if (N <= 32 && buf.remaining() >= 4) {
+                buffer = (buffer << 32) | (buf.getInt() & 0xffffffffL);
+                N += 32;
+            } else {
+                buffer = (buffer << 8) | (buf.get() & 0xff);
+                N += 8;
+            }
+        }
+    }
+
+    // read the next block of input into buf; false at end of input
+    private boolean fillBuf() {
+        if (channel == null && stream == null) return false;
+        buf.clear();
+        int n = readInput(buf);
+        buf.flip();
+        return n > 0;
+    }
+
+    // read from the channel or stream into dst, returning the number of
+    // bytes read, -1 at end of input
+    private int readInput(ByteBuffer dst) {
+        try {
+            int n;
+            if (channel != null) {
+                do { n = channel.read(dst); } while (n == 0 && dst.hasRemaining());
+            } else {
+                do { n = stream.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining()); }
+                while (n == 0 && dst.hasRemaining());
+                if (n > 0) dst.position(dst.position() + n);
+            }
+            return n;
+        }
+        catch (IOException e) { throw new UncheckedIOException(e); }
     }
 
    /**
@@ -49,12 +136,10 @@ public class BinaryStdIn {
      */
     public void close() {
         try {
-            in.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Could not close BinaryStdIn");
+            if (channel != null)     channel.close();
+            else if (stream != null) stream.close();
         }
+        catch (IOException e) { throw new UncheckedIOException(e); }
     }
 
    /**
@@ -62,7 +147,8 @@ public class BinaryStdIn {
      * @return true if and only if input is empty
      */
     public boolean isEmpty() {
-        return buffer == EOF;
+        if (N == 0) fillBuffer();
+        return N == 0;
     }
 
    /**
@@ -71,11 +157,7 @@ public class BinaryStdIn {
      * @throws RuntimeException if input is empty
      */
     public boolean readBoolean() {
-        if (isEmpty()) throw new RuntimeException("Reading from empty input stream");
-        N--;
-        boolean bit = ((buffer >> N) & 1) == 1;
-        if (N == 0) fillBuffer();
-        return bit;
+        return readBits(1) == 1;
     }
 
    /**
@@ -86,26 +168,7 @@ public class BinaryStdIn {
      * @throws RuntimeException if there are fewer than 8 bits available on input
      */
     public char readChar() {
-        if (isEmpty()) throw new RuntimeException("Reading from empty input stream");
-
-        // special case when aligned byte
-        if (N == 8) {
-            int x = buffer;
-            fillBuffer();
-            return (char) (x & 0xff);
-        }
-
-        // combine last N bits of current buffer with first 8-N bits of new buffer
-        int x = buffer;
-        x <<= (8-N);
-        int oldN = N;
-        fillBuffer();
-        if (isEmpty()) throw new RuntimeException("Reading from empty input stream");
-        N = oldN;
-        x |= (buffer >>> N);
-        return (char) (x & 0xff);
-        // the above code doesn't quite work for the last character if N = 8
-        // because buffer will be -1
+        return (char) readBits(8);
     }
 
    /**
@@ -117,17 +180,7 @@ public class BinaryStdIn {
      */
     public char readChar(int r) {
         if (r < 1 || r > 16) throw new RuntimeException("Illegal value of r = " + r);
-
-        // optimize r = 8 case
-        if (r == 8) return readChar();
-
-        char x = 0;
-        for (int i = 0; i < r; i++) {
-            x <<= 1;
-            boolean bit = readBoolean();
-            if (bit) x |= 1;
-        }
-        return x;
+        return (char) readBits(r);
     }
 
    /**
@@ -138,15 +191,74 @@ public class BinaryStdIn {
      */
     public String readString() {
         if (isEmpty()) throw new RuntimeException("Reading from empty input stream");
+        return new String(readAllBytes(), StandardCharsets.ISO_8859_1);
+    }
 
-        StringBuilder sb = new StringBuilder();
-        while (!isEmpty()) {
-            char c = readChar();
-            sb.append(c);
+   /**
+     * Read the remaining bytes of data from input.
+     * @return the remaining bytes of data from input as a <tt>byte[]</tt>,
+     * empty if input is empty
+     */
+    public byte[] readAllBytes() {
+        byte[] b = new byte[1 << 13];
+        int n = 0;
+        while (true) {
+            n += read(b, n, b.length - n);
+            if (n < b.length) return Arrays.copyOf(b, n);
+            if (b.length == Integer.MAX_VALUE - 8) throw new RuntimeException("Input too large for one array");
+            b = Arrays.copyOf(b, (int) Math.min(2L * b.length, Integer.MAX_VALUE - 8));
         }
-        return sb.toString();
     }
 
+   /**
+     * Read bytes from input into the remaining space of dst, stopping
+     * early only at the end of input. The bytes are always copied, even
+     * when the input is a ByteBuffer already in memory.
+     * @param dst the buffer to fill.
+     * @return the number of bytes read
+     */
+    public int read(ByteBuffer dst) {
+        int start = dst.position();
+        if ((N & 7) != 0) {
+            while (dst.hasRemaining()) {
+                if (N < 8) {
+                    fillBuffer();
+                    if (N < 8) break;
+                }
+                N -= 8;
+                dst.put((byte) (buffer >>> N));
+            }
+            return dst.position() - start;
+        }
+
+        // byte-aligned: the whole bytes in the bit buffer, then the bytes
+        // in buf, then straight from the input once dst is at least a
+        // block long
+        while (N > 0 && dst.hasRemaining()) {
+            N -= 8;
+            dst.put((byte) (buffer >>> N));
+        }
+        while (dst.hasRemaining()) {
+            if (buf.hasRemaining()) {
+                int k = Math.min(dst.remaining(), buf.remaining());
+                ByteBuffer part = buf.duplicate();
+                part.limit(part.position() + k);
+                dst.put(part);
+                buf.position(buf.position() + k);
+            } else if ((channel != null || (stream != null && dst.hasArray()))
+                       && dst.remaining() >= buf.capacity()) {
+                if (readInput(dst) < 0) break;
+            } else if (!fillBuf()) {
+                break;
+            }
+        }
+        return dst.position() - start;
+    }
+
+    // read up to len bytes into b[off..), fewer only at the end of input
+    private int read(byte[] b, int off, int len) {
+        return read(ByteBuffer.wrap(b, off, len));
+    }
 
    /**
      * Read the next 16 bits from input and return as a 16-bit short.
@@ -154,13 +266,7 @@ public class BinaryStdIn {
      * @throws RuntimeException if there are fewer than 16 bits available on input
      */
     public short readShort() {
-        short x = 0;
-        for (int i = 0; i < 2; i++) {
-            char c = readChar();
-            x <<= 8;
-            x |= c;
-        }
-        return x;
+        return (short) readBits(16);
     }
 
    /**
@@ -169,13 +275,7 @@ public class BinaryStdIn {
      * @throws RuntimeException if there are fewer than 32 bits available on input
      */
     public int readInt() {
-        int x = 0;
-        for (int i = 0; i < 4; i++) {
-            char c = readChar();
-            x <<= 8;
-            x |= c;
-        }
-        return x;
+        return (int) readBits(32);
     }
 
    /**
@@ -188,16 +288,85 @@ public class BinaryStdIn {
     public int readInt(int r) {
         if (r < 1 || r > 32) throw new RuntimeException("Illegal value of r = " + r);
 
-        // optimize r = 32 case
-        if (r == 32) return readInt();
+        return (int) readBits(r);
+    }
 
-        int x = 0;
-        for (int i = 0; i < r; i++) {
-            x <<= 1;
-            boolean bit = readBoolean();
-            if (bit) x |= 1;
+    // the next r bits, 1 <= r <= 32
+    private long readBits(int r) {
+        if (N < r) {
+            fillBuffer();
+            if (N < r) throw new RuntimeException("Reading from empty input stream");
         }
-        return x;
+        N -= r;
+        return (buffer >>> N) & ((1L << r) - 1);
+    }
+
+   /**
+     * Read up to max codes, each width bits wide, into dst, stopping
+     * early only at the end of input. Input held in memory is unpacked
+     * with one long load, a shift and a mask per code; otherwise every
+     * code the bit buffer holds is unpacked before it is refilled.
+     * @param dst the array to fill.
+     * @param max largest number of codes to read.
+     * @param width number of bits in each code.
+     * @return the number of codes read
+     * @throws RuntimeException unless 1 &le; width &le; 32
+     */
+    public int readRun(int[] dst, int max, int width) {
+        if (width < 1 || width > 32) throw new RuntimeException("Illegal value of width = " + width);
+        if (channel == null && stream == null) return readRunInMemory(dst, max, width);
+        long mask = (1L << width) - 1;
+        int i = 0;
+        while (i < max) {
+            if (N < width) {
+                fillBuffer();
+                if (N < width) break;
+            }
+            long acc = buffer;
+            int bits = N;
+            int k = Math.min(max - i, bits / width);
+            for (int j = 0; j < k; j++) {
+                bits -= width;
+                dst[i++] = (int) ((acc >>> bits) & mask);
+            }
+            N = bits;
+        }
+        return i;
+    }
+
+    // readRun when all of the input is in buf
+    private int readRunInMemory(int[] dst, int max, int width) {
+        int limit = buf.limit();
+        long p = 8L * buf.position() - N;           // bit offset of the next code
+        int n = (int) Math.min(max, (8L * limit - p) / width);
+
+        // codes whose 8-byte window lies inside the input
+        long lastLoad = 8L * (limit - 8) + 7;       // last bit a full load can start at
+        int fast = lastLoad < p ? 0 : (int) Math.min(n, (lastLoad - p) / width + 1);
+        int i = 0;
+        for (; i < fast; i++) {
+            long q = p + (long) i * width;
+            dst[i] = (int) ((buf.getLong((int) (q >>> 3)) << (q & 7)) >>> (64 - width));
+        }
+        for (; i < n; i++) {
+            long q = p + (long) i * width;
+            long w = 0;
+            for (int k = (int) (q >>> 3); k < (int) (q >>> 3) + 8; k++)
+                w = (w << 8) | (k < limit ? buf.get(k) & 0xff : 0);
+            dst[i] = (int) ((w << (q & 7)) >>> (64 - width));
+        }
+
+        // leave the bit buffer holding the rest of the byte the run ended in
+        long end = p + (long) n * width;
+        buf.position((int) (end >>> 3));
+        buffer = 0;
+        N = 0;
+        int used = (int) (end & 7);
+        if (used != 0) {
+            buffer = buf.get() & (0xff >>> used);
+            N = 8 - used;
+        }
+        return n;
     }
 
    /**
@@ -206,13 +375,8 @@ public class BinaryStdIn {
      * @throws RuntimeException if there are fewer than 64 bits available on input
      */
     public long readLong() {
-        long x = 0;
-        for (int i = 0; i < 8; i++) {
-            char c = readChar();
-            x <<= 8;
-            x |= c;
-        }
-        return x;
+        long x = readBits(32) << 32;
+        return x | readBits(32);
     }
 
 
@@ -8,12 +8,24 @@
  *
  *  The bytes written are not aligned.
  *
+ *  Bits are packed into a 64-bit accumulator and moved four bytes at a
+ *  time into a ByteBuffer, which is written to the channel when it
+ *  fills, so no call costs more than a shift and an occasional copy.
+ *  The buffer can be supplied by the caller (heap or direct, any size)
+ *  and reused across instances; nothing on the write path takes a lock,
+ *  and an I/O failure is thrown as an UncheckedIOException.
+ *
  *************************************************************************/
 
 
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.BufferedOutputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 
 /**
  *  <i>Binary output</i>. This class provides methods for converting
@@ -29,55 +41,120 @@ import java.io.PrintStream;
  *  will result.
  */
 public final class BinaryStdOut {
-    private final BufferedOutputStream out;
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;  // null when writing to stream
+    private final OutputStream stream;          // null when writing to channel
+    private final ByteBuffer buf;               // bytes not yet written
+    private byte[] chars;   // write(String) staging, allocated on first use
 
-    private int buffer;     // 8-bit buffer of bits to write out
-    private int N;          // number of bits remaining in buffer
+    private long buffer;    // bits not yet in buf, right-aligned
+    private int N;          // number of bits in buffer, less than 32 between calls
 
     public BinaryStdOut(PrintStream outputStream) {
-      out = new BufferedOutputStream(outputStream);
+      this((OutputStream) outputStream);
+    }
+
+   /**
+     * Write to outputStream; a FileOutputStream is written through its channel.
+     */
+    public BinaryStdOut(OutputStream outputStream) {
+      if (outputStream instanceof FileOutputStream) {
+        channel = ((FileOutputStream) outputStream).getChannel();
+        stream = null;
+      } else {
+        channel = null;
+        stream = outputStream;
+      }
+      buf = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+    }
+
+    public BinaryStdOut(WritableByteChannel channel) {
+      this(channel, ByteBuffer.allocate(DEFAULT_BUFFER_SIZE));
+    }
+
+   /**
+     * Write to channel, staging bytes in buffer, which is cleared and set
+     * to big-endian order. The buffer may be direct and may be reused once
+     * this BinaryStdOut has been flushed.
+     */
+    public BinaryStdOut(WritableByteChannel channel, ByteBuffer buffer) {
+      if (buffer.capacity() < 8) throw new IllegalArgumentException("Buffer too small");
+      this.channel = channel;
+      stream = null;
+      buf = buffer;
+      buf.clear();
+      buf.order(ByteOrder.BIG_ENDIAN);
+    }
+
+   /**
+     * Append the low r bits of x, 1 &le; r &le; 32, to the buffer.
+     */
+    private void writeBits(long x, int r) {
+        buffer = (buffer << r) | x;
+        N += r;
+        if (N >= 32) {
+            if (buf.remaining() < 4) flushBuf();
+            N -= 32;
+            buf.putInt((int) (buffer >>> N));
+        }
     }
 
    /**
      * Write the specified bit to a PrintStream.
      */
     private void writeBit(boolean bit) {
-        // add bit to buffer
-        buffer <<= 1;
-        if (bit) buffer |= 1;
-
-        // if buffer is full (8 bits), write out as a single byte
-        N++;
-        if (N == 8) clearBuffer();
-    } 
+        writeBits(bit ? 1 : 0, 1);
+    }
 
    /**
      * Write the 8-bit byte to a PrintStream.
      */
     private void writeByte(int x) {
         assert x >= 0 && x < 256;
+        writeBits(x, 8);
+    }
 
-        // optimized if byte-aligned
-        if (N == 0) {
-            try { out.write(x); }
-            catch (IOException e) { e.printStackTrace(); }
-            return;
-        }
+    // write the bytes in buf
+    private void flushBuf() {
+        buf.flip();
+        writeFully(buf);
+        buf.clear();
+    }
 
-        // otherwise write one bit at a time
-        for (int i = 0; i < 8; i++) {
-            boolean bit = ((x >>> (8 - i - 1)) & 1) == 1;
-            writeBit(bit);
+    // write all of src, bypassing buf
+    private void writeFully(ByteBuffer src) {
+        try {
+            if (channel != null) {
+                while (src.hasRemaining())
+                    channel.write(src);
+            } else if (src.hasArray()) {
+                stream.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+                src.position(src.limit());
+            } else {
+                byte[] b = new byte[Math.min(src.remaining(), DEFAULT_BUFFER_SIZE)];
+                while (src.hasRemaining()) {
+                    int k = Math.min(src.remaining(), b.length);
+                    src.get(b, 0, k);
+                    stream.write(b, 0, k);
+                }
+            }
         }
+        catch (IOException e) { throw new UncheckedIOException(e); }
     }
 
-    // write out any remaining bits in buffer to a PrintStream, padding with 0s
+    // move any remaining bits in buffer to buf, padding with 0s
     private void clearBuffer() {
         if (N == 0) return;
-        if (N > 0) buffer <<= (8 - N);
-        try { out.write(buffer); }
-        catch (IOException e) { e.printStackTrace(); }
-        N = 0;
+        if ((N & 7) != 0) {
+            buffer <<= 8 - (N & 7);
+            N += 8 - (N & 7);
+        }
+        if (buf.remaining() < 4) flushBuf();
+        while (N > 0) {
+            N -= 8;
+            buf.put((byte) (buffer >>> N));
+        }
         buffer = 0;
     }
 
@@ -87,8 +164,10 @@ public final class BinaryStdOut {
      */
     public void flush() {
         clearBuffer();
-        try { out.flush(); }
-        catch (IOException e) { e.printStackTrace(); }
+        flushBuf();
+        if (stream == null) return;
+        try { stream.flush(); }
+        catch (IOException e) { throw new UncheckedIOException(e); }
     }
 
    /**
@@ -97,8 +176,11 @@ public final class BinaryStdOut {
      */
     public void close() {
         flush();
-        try { out.close(); }
-        catch (IOException e) { e.printStackTrace(); }
+        try {
+            if (channel != null) channel.close();
+            else                 stream.close();
+        }
+        catch (IOException e) { throw new UncheckedIOException(e); }
     }
 
 
@@ -123,10 +205,7 @@ public final class BinaryStdOut {
      * @param x the <tt>int</tt> to write.
      */
     public void write(int x) {
-        writeByte((x >>> 24) & 0xff);
-        writeByte((x >>> 16) & 0xff);
-        writeByte((x >>>  8) & 0xff);
-        writeByte((x >>>  0) & 0xff);
+        writeBits(x & 0xffffffffL, 32);
     }
 
    /**
@@ -137,19 +216,12 @@ public final class BinaryStdOut {
      * @throws RuntimeException if <tt>x</tt> is not between 0 and 2<sup>r</sup> - 1.
      */
     public void write(int x, int r) {
-        if (r == 32) write(x);
+        if (r == 32) { write(x); return; }
         if (r < 1 || r > 32)        throw new RuntimeException("Illegal value for r = " + r);
         if (x < 0 || x >= (1 << r)) throw new RuntimeException("Illegal " + r + "-bit char = " + x);
-        for (int i = 0; i < r; i++) {
-            boolean bit = ((x >>> (r - i - 1)) & 1) == 1;
-            writeBit(bit);
-        }
+        writeBits(x, r);
     }
 
-
-
-
-
    /**
      * Write the 64-bit double to PrintStream.
      * @param x the <tt>double</tt> to write.
@@ -163,14 +235,8 @@ public final class BinaryStdOut {
      * @param x the <tt>long</tt> to write.
      */
     public void write(long x) {
-        writeByte((int) ((x >>> 56) & 0xff));
-        writeByte((int) ((x >>> 48) & 0xff));
-        writeByte((int) ((x >>> 40) & 0xff));
-        writeByte((int) ((x >>> 32) & 0xff));
-        writeByte((int) ((x >>> 24) & 0xff));
-        writeByte((int) ((x >>> 16) & 0xff));
-        writeByte((int) ((x >>>  8) & 0xff));
-        writeByte((int) ((x >>>  0) & 0xff));
+        writeBits(x >>> 32, 32);
+        writeBits(x & 0xffffffffL, 32);
     }
 
    /**
@@ -186,8 +252,7 @@ public final class BinaryStdOut {
      * @param x the <tt>short</tt> to write.
      */
     public void write(short x) {
-        writeByte((x >>>  8) & 0xff);
-        writeByte((x >>>  0) & 0xff);
+        writeBits(x & 0xffff, 16);
     }
 
    /**
@@ -208,13 +273,10 @@ public final class BinaryStdOut {
      * @throws RuntimeException if <tt>x</tt> is not between 0 and 2<sup>r</sup> - 1.
      */
     public void write(char x, int r) {
-        if (r == 8) write(x);
+        if (r == 8) { write(x); return; }
         if (r < 1 || r > 16)        throw new RuntimeException("Illegal value for r = " + r);
         if (x < 0 || x >= (1 << r)) throw new RuntimeException("Illegal " + r + "-bit char = " + x);
-        for (int i = 0; i < r; i++) {
-            boolean bit = ((x >>> (r - i - 1)) & 1) == 1;
-            writeBit(bit);
-        }
+        writeBits(x, r);
     }
 
    /**
@@ -224,8 +286,74 @@ public final class BinaryStdOut {
      * between 0 and 255.
      */
     public void write(String s) {
-        for (int i = 0; i < s.length(); i++)
-            write(s.charAt(i));
+        if (chars == null) chars = new byte[1 << 13];
+        for (int i = 0; i < s.length(); ) {
+            int n = Math.min(s.length() - i, chars.length);
+            for (int j = 0; j < n; j++) {
+                char c = s.charAt(i + j);
+                if (c >= 256) throw new RuntimeException("Illegal 8-bit char = " + c);
+                chars[j] = (byte) c;
+            }
+            write(chars, 0, n);
+            i += n;
+        }
+    }
+
+   /**
+     * Write the bytes b[off..off+len) to PrintStream.
+     * @param b the bytes to write.
+     * @param off the index in b of the first byte.
+     * @param len the number of bytes to write.
+     */
+    public void write(byte[] b, int off, int len) {
+        if ((N & 7) != 0) {
+            // shift four bytes at a time through the accumulator
+            int i = 0;
+            for (; i + 4 <= len; i += 4) {
+                int w = (b[off + i] & 0xff) << 24 | (b[off + i + 1] & 0xff) << 16
+                      | (b[off + i + 2] & 0xff) << 8 | (b[off + i + 3] & 0xff);
+                writeBits(w & 0xffffffffL, 32);
+            }
+            for (; i < len; i++)
+                writeBits(b[off + i] & 0xff, 8);
+            return;
+        }
+
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+   /**
+     * Write the remaining bytes of src to PrintStream.
+     * @param src the bytes to write.
+     */
+    public void write(ByteBuffer src) {
+        if ((N & 7) != 0) {
+            if (src.hasArray()) {
+                write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+                src.position(src.limit());
+            } else {
+                while (src.hasRemaining())
+                    writeBits(src.get() & 0xff, 8);
+            }
+            return;
+        }
+
+        // byte-aligned: copy into buf, or straight to the output if src is
+        // at least a buffer long
+        clearBuffer();
+        if (src.remaining() >= buf.capacity()) {
+            flushBuf();
+            writeFully(src);
+            return;
+        }
+        while (src.hasRemaining()) {
+            if (!buf.hasRemaining()) flushBuf();
+            int k = Math.min(src.remaining(), buf.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + k);
+            buf.put(part);
+            src.position(src.position() + k);
+        }
     }
 
    /**
@@ -0,0 +1,100 @@
+/*************************************************************************
+ *  Compilation:  javac ByteArrayChannel.java
+ *
+ *  A growable in-memory SeekableByteChannel, so a MyLZW file can be
+ *  written to memory with the same code that writes it to disk.
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+public class ByteArrayChannel implements SeekableByteChannel {
+    private byte[] buf;
+    private int size;
+    private long position;
+    private boolean open = true;
+
+    public ByteArrayChannel() {
+        this(1 << 12);
+    }
+
+    public ByteArrayChannel(int capacity) {
+        buf = new byte[capacity];
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) return -1;
+        int n = (int) Math.min(dst.remaining(), size - position);
+        dst.put(buf, (int) position, n);
+        position += n;
+        return n;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        int n = src.remaining();
+        long end = position + n;
+        if (end > Integer.MAX_VALUE) throw new IOException("ByteArrayChannel full");
+        if (end > buf.length) buf = Arrays.copyOf(buf, (int) Math.max(end, Math.min(2L * buf.length, Integer.MAX_VALUE)));
+        if (position > size) Arrays.fill(buf, size, (int) position, (byte) 0);
+        src.get(buf, (int) position, n);
+        position = end;
+        size = Math.max(size, (int) end);
+        return n;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public ByteArrayChannel position(long newPosition) {
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+        position = newPosition;
+        return this;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public ByteArrayChannel truncate(long newSize) {
+        if (newSize < 0) throw new IllegalArgumentException("Negative size");
+        if (newSize < size) size = (int) newSize;
+        if (position > newSize) position = newSize;
+        return this;
+    }
+
+   /**
+     * The backing array, valid up to size(); replaced when the channel grows.
+     */
+    public byte[] array() {
+        return buf;
+    }
+
+   /**
+     * Write the whole contents to out.
+     */
+    public void writeTo(WritableByteChannel out) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(buf, 0, size);
+        while (src.hasRemaining())
+            out.write(src);
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() {
+        open = false;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) throw new ClosedChannelException();
+    }
+}
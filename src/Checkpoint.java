@@ -0,0 +1,88 @@
+/*************************************************************************
+ *  Compilation:  javac Checkpoint.java
+ *
+ *  Restart point for MyLZW.compress, kept next to the output file as
+ *  <outputFile>.ckpt while a checkpointed compression is running.
+ *
+ *  Every block starts with a fresh dictionary, so any block boundary is
+ *  a restart point: the checkpoint only records how far the input and
+ *  output had got, plus enough about the input to tell whether it is
+ *  still the same file. The index is rebuilt from the frames already
+ *  in the output on resume.
+ *
+ *************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+public class Checkpoint {
+    public static final int INTERVAL = 16;       // blocks between checkpoints
+
+    private static final int MAGIC = 0x4C5A5743; // "LZWC"
+    private static final int BYTES = 48;
+
+    private final File file;
+    public long inputLength;
+    public long inputModified;
+    public int mode;
+    public long inputOffset;                     // of the first block not yet written
+    public long outputOffset;                    // where that block's frame goes
+    public int blocks;                           // blocks written before outputOffset
+
+    public Checkpoint(File outFile) {
+        file = new File(outFile.getPath() + ".ckpt");
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+   /**
+     * Load the last saved checkpoint.
+     */
+    public void read() throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buf.remaining() != BYTES || buf.getInt() != MAGIC)
+            throw new RuntimeException("Corrupt checkpoint " + file);
+        inputLength = buf.getLong();
+        inputModified = buf.getLong();
+        mode = buf.getInt();
+        inputOffset = buf.getLong();
+        outputOffset = buf.getLong();
+        blocks = buf.getInt();
+    }
+
+   /**
+     * Force the output written so far to disk, then atomically replace the
+     * checkpoint with one at inputOffset and the current output position.
+     */
+    public void save(long inputOffset, SeekableByteChannel out, LZWFile file) throws IOException {
+        if (out instanceof FileChannel) ((FileChannel) out).force(false);
+        else if (out instanceof AsyncFileWriter) ((AsyncFileWriter) out).force(false);
+        else if (out instanceof ThrottledChannel) ((ThrottledChannel) out).force(false);
+        this.inputOffset = inputOffset;
+        outputOffset = out.position();
+        blocks = file.blocks.size();
+
+        ByteBuffer buf = ByteBuffer.allocate(BYTES);
+        buf.putInt(MAGIC).putLong(inputLength).putLong(inputModified).putInt(mode);
+        buf.putLong(inputOffset).putLong(outputOffset).putInt(blocks);
+        File tmp = new File(this.file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), buf.array());
+        Files.move(tmp.toPath(), this.file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    public String toString() {
+        return file.getPath();
+    }
+}
@@ -0,0 +1,114 @@
+/*************************************************************************
+ *  Compilation:  javac Chunker.java
+ *
+ *  Splits an input channel into the blocks MyLZW compresses, either at
+ *  fixed LZWFile.BLOCK_SIZE offsets or at content-defined boundaries.
+ *
+ *  Content-defined boundaries are found with a gear rolling hash over
+ *  roughly the last 64 bytes: a chunk ends where the top bits of the
+ *  hash are all zero, giving chunks of 64 KB up to LZWFile.BLOCK_SIZE,
+ *  about 256 KB on average. Because a boundary depends only on nearby
+ *  bytes, an insertion early in the input does not shift the chunks
+ *  after it, so repeated content produces repeated chunks.
+ *
+ *  Chunks are handed out as views, not copies: of a read buffer, or
+ *  with mapped set, of the input itself mapped MAP_WINDOW bytes at a
+ *  time, so the encoder reads the page cache directly.
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+public class Chunker {
+    public static final int MIN_CHUNK = 1 << 16;
+    private static final long BOUNDARY_MASK = ~(-1L >>> 18);   // top 18 bits
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x4C5A57);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    public static final long MAP_WINDOW = 1L << 30;
+
+    private final ReadableByteChannel in;
+    private final boolean contentDefined;
+    private final boolean mapped;
+    private final long end;                // mapped: length of the input
+    private ByteBuffer buf;                // read buffer, or mapped window
+    private long bufOffset;                // mapped: input offset of buf[0]
+    private long position;                 // input offset of the next chunk
+
+    public Chunker(FileChannel in, boolean contentDefined) throws IOException {
+        this(in, contentDefined, false);
+    }
+
+    public Chunker(FileChannel in, boolean contentDefined, boolean mapped) throws IOException {
+        this(in, in.position(), contentDefined, mapped);
+    }
+
+   /**
+     * Chunk in, whose next byte is at offset position of the input;
+     * in must be a FileChannel if mapped is set.
+     */
+    public Chunker(ReadableByteChannel in, long position, boolean contentDefined, boolean mapped)
+            throws IOException {
+        this.in = in;
+        this.contentDefined = contentDefined;
+        this.mapped = mapped;
+        this.position = position;
+        if (mapped) {
+            end = ((FileChannel) in).size();
+            buf = ByteBuffer.allocate(0);
+            bufOffset = position;
+        } else {
+            end = -1;
+            buf = ByteBuffer.allocate(2 * LZWFile.BLOCK_SIZE);
+            buf.flip();
+        }
+    }
+
+    // input offset of the next chunk
+    public long position() {
+        return position;
+    }
+
+   /**
+     * Return the next chunk as a view that stays valid until the next
+     * call, empty at the end of the input.
+     */
+    public ByteBuffer next() throws IOException {
+        if (buf.remaining() < LZWFile.BLOCK_SIZE) {
+            if (!mapped) {
+                buf.compact();
+                while (buf.hasRemaining() && in.read(buf) >= 0) { }
+                buf.flip();
+            } else if (bufOffset + buf.limit() < end) {
+                buf = ((FileChannel) in).map(FileChannel.MapMode.READ_ONLY, position, Math.min(end - position, MAP_WINDOW));
+                bufOffset = position;
+            }
+        }
+        int max = Math.min(buf.remaining(), LZWFile.BLOCK_SIZE);
+        int n = contentDefined ? boundary(max) : max;
+        ByteBuffer chunk = buf.slice(buf.position(), n);
+        buf.position(buf.position() + n);
+        position += n;
+        return chunk;
+    }
+
+    // length of the chunk at the buffer position, at most max
+    private int boundary(int max) {
+        if (max <= MIN_CHUNK) return max;
+        int base = buf.position();
+        long h = 0;
+        for (int i = MIN_CHUNK - 64; i < max; i++) {
+            h = (h << 1) + GEAR[buf.get(base + i) & 0xff];
+            if (i >= MIN_CHUNK && (h & BOUNDARY_MASK) == 0) return i + 1;
+        }
+        return max;
+    }
+}
@@ -0,0 +1,22 @@
+/*************************************************************************
+ *  Compilation:  javac CodeOut.java
+ *
+ *  Where an LZW encoder sends its codewords, so one codeword loop can
+ *  pack them in either layout of a MyLZW block: MSB-first into a byte
+ *  array, as LZWCompressor does for itself, or LSB-first in little-
+ *  endian words through LSBCodeOut.
+ *
+ *************************************************************************/
+
+public interface CodeOut {
+
+   /**
+     * Append code, which is width bits wide.
+     */
+    void write(int code, int width);
+
+   /**
+     * Write the bits left over, padding the last byte with 0s.
+     */
+    void flush();
+}
@@ -0,0 +1,57 @@
+/*************************************************************************
+ *  Compilation:  javac Dedup.java
+ *
+ *  Fingerprint table for MyLZW's optional dedup stage: remembers the
+ *  SHA-256 of recently compressed chunks so that a repeated chunk can be
+ *  written as a reference to the earlier block instead of being
+ *  compressed again. The table holds at most MAX_ENTRIES fingerprints
+ *  and forgets the least recently used first, so memory stays bounded
+ *  however long the input is.
+ *
+ *************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class Dedup {
+    public static final int MAX_ENTRIES = 1 << 16;
+
+    private final MessageDigest sha;
+    private final Map<ByteBuffer, LZWFile.Block> seen =
+        new LinkedHashMap<ByteBuffer, LZWFile.Block>(1024, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, LZWFile.Block> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    private ByteBuffer last;               // fingerprint of the last chunk looked up
+
+    public Dedup() {
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+   /**
+     * Return the earlier block holding the same bytes as the remaining
+     * bytes of chunk, or null if there is none.
+     */
+    public LZWFile.Block find(ByteBuffer chunk, int crc) {
+        sha.update(chunk.duplicate());
+        last = ByteBuffer.wrap(sha.digest());
+        LZWFile.Block b = seen.get(last);
+        if (b != null && (b.rawLength != chunk.remaining() || b.crc != crc)) return null;
+        return b;
+    }
+
+   /**
+     * Remember b as the block holding the chunk last passed to find.
+     */
+    public void add(LZWFile.Block b) {
+        seen.put(last, b);
+    }
+}
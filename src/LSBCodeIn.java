@@ -0,0 +1,67 @@
+/*************************************************************************
+ *  Compilation:  javac LSBCodeIn.java
+ *
+ *  Reads codewords written by LSBCodeOut from a ByteBuffer. A codeword
+ *  of up to 32 bits starting at bit p lies within the 8 bytes from
+ *  byte p / 8, so readRun unpacks each codeword of a run with one
+ *  little-endian long load at that byte, a shift by p % 8 and a mask,
+ *  independently of the others; only the last few codewords of the
+ *  input, where fewer than 8 bytes are left, are put together a byte
+ *  at a time.
+ *
+ *************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class LSBCodeIn {
+    private final ByteBuffer buf;   // the input, little-endian
+    private final int limit;        // bytes in the input
+    private final long bits;        // in the input
+    private long position;          // bit offset of the next codeword
+
+   /**
+     * Read the remaining bytes of data, without copying them.
+     */
+    public LSBCodeIn(ByteBuffer data) {
+        buf = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        limit = buf.limit();
+        bits = 8L * limit;
+    }
+
+   /**
+     * Read up to max codewords, each width bits wide, into dst, stopping
+     * early only at the end of the input.
+     * @return the number of codewords read
+     * @throws RuntimeException unless 1 &le; width &le; 32
+     */
+    public int readRun(int[] dst, int max, int width) {
+        if (width < 1 || width > 32) throw new RuntimeException("Illegal value of width = " + width);
+        long mask = (1L << width) - 1;
+        long p = position;
+        int n = (int) Math.min(max, (bits - p) / width);
+
+        // codewords whose 8-byte window lies inside the input
+        long lastLoad = 8L * (limit - 8) + 7;      // last bit a full load can start at
+        int fast = lastLoad < p ? 0 : (int) Math.min(n, (lastLoad - p) / width + 1);
+        int i = 0;
+        for (; i < fast; i++) {
+            long q = p + (long) i * width;
+            dst[i] = (int) ((buf.getLong((int) (q >>> 3)) >>> (q & 7)) & mask);
+        }
+        for (; i < n; i++) {
+            long q = p + (long) i * width;
+            dst[i] = (int) ((tail((int) (q >>> 3)) >>> (q & 7)) & mask);
+        }
+        position = p + (long) n * width;
+        return n;
+    }
+
+    // the bytes from i to the end of the input as a little-endian long
+    private long tail(int i) {
+        long w = 0;
+        for (int k = limit - 1; k >= i; k--)
+            w = (w << 8) | (buf.get(k) & 0xff);
+        return w;
+    }
+}
@@ -0,0 +1,85 @@
+/*************************************************************************
+ *  Compilation:  javac LSBCodeOut.java
+ *
+ *  Writes codewords in the LSB-first layout of MyLZW format version 3,
+ *  the packing GIF and Unix compress use: the first codeword takes the
+ *  low bits of the first byte, and every later one starts at the bit
+ *  after the previous one ends. Bits are gathered into a 64-bit word
+ *  that goes out as a little-endian long once it is full, so a reader
+ *  can fetch any codeword with one unaligned load, a shift and a mask
+ *  (see LSBCodeIn). The last word is cut to the bytes it uses.
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+public class LSBCodeOut implements CodeOut {
+    private final WritableByteChannel channel;
+    private final ByteBuffer buf;   // whole words not yet written to channel
+
+    private long word;              // bits not yet in buf, starting at bit 0
+    private int N;                  // number of them, always < 64
+
+   /**
+     * Write to channel, staging words in buffer, which is cleared and set
+     * to little-endian order. The buffer may be reused once this
+     * LSBCodeOut has been flushed.
+     */
+    public LSBCodeOut(WritableByteChannel channel, ByteBuffer buffer) {
+        if (buffer.capacity() < 8) throw new IllegalArgumentException("Buffer too small");
+        this.channel = channel;
+        buf = buffer;
+        buf.clear();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+   /**
+     * Write the code x, width bits wide.
+     * @throws RuntimeException if <tt>width</tt> is not between 1 and 32.
+     * @throws RuntimeException if <tt>x</tt> is not between 0 and 2<sup>width</sup> - 1.
+     */
+    public void write(int x, int width) {
+        if (width < 1 || width > 32) throw new RuntimeException("Illegal value for width = " + width);
+        if (width < 32 && (x >>> width) != 0)
+            throw new RuntimeException("Illegal " + width + "-bit char = " + x);
+        long code = x & ((1L << width) - 1);
+        word |= code << N;
+        N += width;
+        if (N >= 64) {
+            if (buf.remaining() < 8) flushBuf();
+            buf.putLong(word);
+            N -= 64;
+            word = N == 0 ? 0 : code >>> (width - N);
+        }
+    }
+
+   /**
+     * Write the bits left over, padding the last byte with 0s, and
+     * everything buffered to the channel.
+     */
+    public void flush() {
+        if (buf.remaining() < 8) flushBuf();
+        for (; N > 0; N -= 8) {
+            buf.put((byte) word);
+            word >>>= 8;
+        }
+        N = 0;
+        word = 0;
+        flushBuf();
+    }
+
+    private void flushBuf() {
+        buf.flip();
+        try {
+            while (buf.hasRemaining())
+                channel.write(buf);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buf.clear();
+    }
+}
@@ -0,0 +1,518 @@
+/*************************************************************************
+ *  Compilation:  javac LZWArchive.java
+ *  Dependencies: MyLZW.java LZWFile.java ByteArrayChannel.java
+ *
+ *  A directory of files compressed into one indexed archive by a single
+ *  JVM:
+ *
+ *    header     archive magic, version
+ *    members    one complete MyLZW file (see LZWFile) per member
+ *    directory  per member: path, offset, compressed length, original
+ *               length, last-modified time, SHA-256 of the original
+ *               (version 2 on)
+ *    trailer    directory offset, member count, archive magic
+ *
+ *  Members are compressed and extracted concurrently, one job per file,
+ *  handed out largest first so that a big file started last does not
+ *  keep one core busy after the rest have gone idle. Every member is a
+ *  self-contained MyLZW file, so a single member can be extracted
+ *  without touching the others.
+ *
+ *  The directory doubles as the manifest for incremental updates: a
+ *  file whose size and last-modified time match its member is kept
+ *  without being read, one whose size matches is kept if its content
+ *  hash does too, and only the rest are compressed, as are members
+ *  stored in a different mode than the one asked for. Kept members stay
+ *  where they are; new ones are appended after the old directory and a
+ *  new directory is written after them, so an update costs time in
+ *  proportion to what changed. Space left behind by replaced and
+ *  removed members is reclaimed by rewriting the archive once it makes
+ *  up half of it.
+ *
+ *  While an update writes past the old end, <archiveFile>.undo records
+ *  where that end was. Everything before it is left untouched, so if the
+ *  update does not finish, extract and list still read the archive as it
+ *  was, and the next update cuts it back there before starting.
+ *
+ *************************************************************************/
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class LZWArchive {
+    public static final int MAGIC = 0x4C5A5741;          // "LZWA"
+    public static final int VERSION = 2;                 // 2 adds the content hash
+
+    private static final int HEADER_BYTES = 8;
+    private static final int TRAILER_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+    private static final long SPOOL_THRESHOLD = 64 << 20;  // larger members go through a temp file
+    private static final int UNDO_MAGIC = 0x4C5A5755;     // "LZWU"
+
+    public final List<Member> members = new ArrayList<Member>();
+    private long directoryOffset;
+
+    // one entry of the directory
+    public static final class Member {
+        public String path;             // relative, '/'-separated
+        public long offset;             // of its MyLZW file in the archive
+        public long length;             // of its MyLZW file
+        public long size;               // original length
+        public long modified;           // original last-modified time, ms
+        public byte[] hash;             // SHA-256 of the original, null before version 2
+    }
+
+    private static final Comparator<Member> LARGEST_FIRST = new Comparator<Member>() {
+        public int compare(Member a, Member b) {
+            return Long.compare(b.size, a.size);
+        }
+    };
+
+    private static final Comparator<Member> BY_OFFSET = new Comparator<Member>() {
+        public int compare(Member a, Member b) {
+            return Long.compare(a.offset, b.offset);
+        }
+    };
+
+    private static final Comparator<Member> BY_PATH = new Comparator<Member>() {
+        public int compare(Member a, Member b) {
+            return a.path.compareTo(b.path);
+        }
+    };
+
+   /**
+     * Compress every regular file under dir into archiveFile.
+     */
+    public static void create(String modeSelect, File dir, File archiveFile) throws IOException {
+        int mode = MyLZW.modeCode(modeSelect);
+        Path root = dir.toPath();
+        List<Member> todo = scan(root);
+
+        try (FileChannel out = new FileOutputStream(archiveFile).getChannel()) {
+            writeHeader(out);
+
+            LZWArchive archive = new LZWArchive();
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (Member m : todo)
+                tasks.add(archive.addTask(out, m, null, root, mode, archiveFile));
+            List<String> failures = MyLZW.runParallel(tasks, true);
+            if (!failures.isEmpty()) throw new RuntimeException(failures.get(0));
+
+            archive.writeDirectory(out);
+        }
+    }
+
+   /**
+     * Bring archiveFile up to date with the regular files under dir,
+     * compressing only new and changed files and dropping the members of
+     * files that are gone. Creates archiveFile if it does not exist.
+     */
+    public static void update(String modeSelect, File dir, File archiveFile) throws IOException {
+        if (!archiveFile.exists()) {
+            create(modeSelect, dir, archiveFile);
+            return;
+        }
+        int mode = MyLZW.modeCode(modeSelect);
+        Path root = dir.toPath();
+        boolean updated;
+        try (RandomAccessFile raf = new RandomAccessFile(archiveFile, "rw")) {
+            updated = update(raf.getChannel(), mode, root, archiveFile);
+        }
+        if (!updated) rewrite(modeSelect, dir, archiveFile);
+    }
+
+    // update the archive in out, or return false if it must be rewritten
+    // as a whole
+    private static boolean update(FileChannel out, int mode, Path root, File archiveFile) throws IOException {
+        long undo = undoSize(archiveFile);
+        if (undo >= 0) {
+            out.truncate(undo);           // drop what an unfinished update wrote
+            out.force(true);
+            Files.delete(undoFile(archiveFile).toPath());
+        }
+        long oldSize = out.size();
+        Map<String, Member> previous = new HashMap<String, Member>();
+        for (Member m : open(out).members) {
+            if (m.hash == null)           // version 1: no member can be kept
+                return false;
+            previous.put(m.path, m);
+        }
+
+        LZWArchive archive = new LZWArchive();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        int unchanged = 0;
+        for (Member m : scan(root)) {
+            Member old = previous.remove(m.path);
+            if (old != null && LZWFile.open(out, old.offset, old.length).mode != mode)
+                old = null;               // compressed again in the mode asked for
+            if (old != null && old.size == m.size && old.modified == m.modified) {
+                archive.keep(m, old);
+                unchanged++;
+            } else {
+                tasks.add(archive.addTask(out, m, old, root, mode, archiveFile));
+            }
+        }
+
+        if (tasks.isEmpty() && previous.isEmpty()) {
+            System.out.printf("%s: %d unchanged%n", archiveFile, unchanged);
+            return true;
+        }
+
+        // new members go after the old trailer, so a failed update can
+        // be undone by cutting the file back to its old length
+        saveUndo(archiveFile, oldSize);
+        out.position(oldSize);
+        List<String> failures = MyLZW.runParallel(tasks, true);
+        if (!failures.isEmpty()) {
+            out.truncate(oldSize);
+            Files.delete(undoFile(archiveFile).toPath());
+            throw new RuntimeException(failures.get(0));
+        }
+        archive.writeDirectory(out);
+        out.force(true);
+        Files.delete(undoFile(archiveFile).toPath());
+
+        long live = 0;
+        int compressed = 0;
+        for (Member m : archive.members) {
+            live += m.length;
+            if (m.offset >= oldSize) compressed++;
+        }
+        long dead = archive.directoryOffset - HEADER_BYTES - live;
+        if (dead > live) archive.compact(out, archiveFile);
+        System.out.printf("%s: %d unchanged, %d rehashed, %d compressed, %d removed%n", archiveFile,
+                          unchanged, archive.members.size() - unchanged - compressed, compressed, previous.size());
+        return true;
+    }
+
+    // replace archiveFile with a new archive of the files under dir,
+    // written to a temp file first
+    private static void rewrite(String modeSelect, File dir, File archiveFile) throws IOException {
+        File tmp = new File(archiveFile.getPath() + ".tmp");
+        try {
+            create(modeSelect, dir, tmp);
+        } catch (IOException | RuntimeException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        Files.move(tmp.toPath(), archiveFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.printf("%s: rewritten%n", archiveFile);
+    }
+
+    private static File undoFile(File archiveFile) {
+        return new File(archiveFile.getPath() + ".undo");
+    }
+
+    // the length archiveFile had before an update that did not finish,
+    // or -1 if there is none
+    private static long undoSize(File archiveFile) throws IOException {
+        File undo = undoFile(archiveFile);
+        if (!undo.exists()) return -1;
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(undo.toPath()));
+        if (buf.remaining() != 12 || buf.getInt() != UNDO_MAGIC)
+            throw new RuntimeException("Corrupt undo record " + undo);
+        return buf.getLong();
+    }
+
+    // atomically record size as the length to cut archiveFile back to
+    private static void saveUndo(File archiveFile, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(12).putInt(UNDO_MAGIC).putLong(size);
+        File tmp = new File(undoFile(archiveFile).getPath() + ".tmp");
+        Files.write(tmp.toPath(), buf.array());
+        Files.move(tmp.toPath(), undoFile(archiveFile).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // a Member for each regular file under root, largest first
+    private static List<Member> scan(Path root) throws IOException {
+        List<Member> files = new ArrayList<Member>();
+        for (Path path : walk(root)) {
+            Member m = new Member();
+            m.path = root.relativize(path).toString().replace(File.separatorChar, '/');
+            m.size = Files.size(path);
+            m.modified = Files.getLastModifiedTime(path).toMillis();
+            files.add(m);
+        }
+        Collections.sort(files, LARGEST_FIRST);
+        return files;
+    }
+
+    // all regular files under root
+    private static List<Path> walk(Path root) throws IOException {
+        Stream<Path> paths = Files.walk(root);
+        try {
+            return paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        } finally {
+            paths.close();
+        }
+    }
+
+    // a job adding the file for m to the archive: kept as old if its
+    // content hash matches, otherwise compressed and appended to out
+    private Callable<Void> addTask(final FileChannel out, final Member m, final Member old, final Path root,
+                                   final int mode, File archiveFile) {
+        final File spoolDir = archiveFile.getAbsoluteFile().getParentFile();
+        return new Callable<Void>() {
+            public Void call() throws IOException {
+                File file = root.resolve(m.path).toFile();
+                if (old != null && old.hash != null && old.size == m.size
+                        && MessageDigest.isEqual(old.hash, hash(file))) {
+                    keep(m, old);
+                } else {
+                    add(out, m, file, mode, spoolDir);
+                }
+                return null;
+            }
+        };
+    }
+
+    // SHA-256 of the contents of file
+    static byte[] hash(File file) throws IOException {
+        MessageDigest sha = sha256();
+        try (FileChannel in = new FileInputStream(file).getChannel()) {
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+            while (in.read(buf) >= 0) {
+                buf.flip();
+                sha.update(buf);
+                buf.clear();
+            }
+        }
+        return sha.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // record m as stored in the compressed bytes of old
+    private synchronized void keep(Member m, Member old) {
+        m.offset = old.offset;
+        m.length = old.length;
+        m.hash = old.hash;
+        members.add(m);
+    }
+
+    // compress file and append it to the archive as member m
+    private void add(FileChannel out, Member m, File file, int mode, File spoolDir) throws IOException {
+        MessageDigest sha = sha256();
+        File tmp = m.size > SPOOL_THRESHOLD ? File.createTempFile("lzw", ".tmp", spoolDir) : null;
+        try (FileChannel in = new FileInputStream(file).getChannel();
+             SeekableByteChannel spool = tmp != null
+                     ? FileChannel.open(tmp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                     : new ByteArrayChannel((int) Math.max(1 << 12, m.size / 2))) {
+            m.size = MyLZW.compress(in, spool, mode, sha);
+            m.hash = sha.digest();
+            append(out, m, spool);
+        } catch (RuntimeException ex) {
+            throw new RuntimeException(m.path + ": " + ex.getMessage());
+        } finally {
+            if (tmp != null) tmp.delete();
+        }
+    }
+
+    // copy the compressed member in spool to the end of the archive
+    private synchronized void append(FileChannel out, Member m, SeekableByteChannel spool) throws IOException {
+        m.offset = out.position();
+        m.length = spool.size();
+        if (spool instanceof ByteArrayChannel) {
+            ((ByteArrayChannel) spool).writeTo(out);
+        } else {
+            FileChannel from = (FileChannel) spool;
+            for (long done = 0; done < m.length; )
+                done += from.transferTo(done, m.length - done, out);
+        }
+        members.add(m);
+    }
+
+    private static void writeHeader(FileChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        LZWFile.writeFully(out, header);
+    }
+
+    private void writeDirectory(FileChannel out) throws IOException {
+        Collections.sort(members, BY_PATH);
+        directoryOffset = out.position();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream directory = new DataOutputStream(bytes);
+        for (Member m : members) {
+            directory.writeUTF(m.path);
+            directory.writeLong(m.offset);
+            directory.writeLong(m.length);
+            directory.writeLong(m.size);
+            directory.writeLong(m.modified);
+            directory.write(m.hash);
+        }
+        directory.writeLong(directoryOffset);
+        directory.writeInt(members.size());
+        directory.writeInt(MAGIC);
+        LZWFile.writeFully(out, ByteBuffer.wrap(bytes.toByteArray()));
+        out.truncate(out.position());
+    }
+
+    // rewrite the archive in out without the space left by replaced and
+    // removed members, replacing archiveFile
+    private void compact(FileChannel out, File archiveFile) throws IOException {
+        File tmp = new File(archiveFile.getPath() + ".tmp");
+        try (FileChannel to = new FileOutputStream(tmp).getChannel()) {
+            writeHeader(to);
+            List<Member> byOffset = new ArrayList<Member>(members);
+            Collections.sort(byOffset, BY_OFFSET);
+            for (Member m : byOffset) {
+                long offset = to.position();
+                for (long done = 0; done < m.length; )
+                    done += out.transferTo(m.offset + done, m.length - done, to);
+                m.offset = offset;
+            }
+            writeDirectory(to);
+            to.force(true);
+        }
+        Files.move(tmp.toPath(), archiveFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+   /**
+     * Read the directory of the archive in the channel.
+     */
+    public static LZWArchive open(FileChannel in) throws IOException {
+        return open(in, in.size());
+    }
+
+    // the archive archiveFile, open as in, without anything an unfinished
+    // update wrote after it
+    private static LZWArchive open(FileChannel in, File archiveFile) throws IOException {
+        long undo = undoSize(archiveFile);
+        return open(in, undo >= 0 ? Math.min(undo, in.size()) : in.size());
+    }
+
+    // the archive in the first size bytes of in
+    private static LZWArchive open(FileChannel in, long size) throws IOException {
+        ByteBuffer header = LZWFile.readFully(in, 0, HEADER_BYTES);
+        if (header.getInt() != MAGIC) throw new RuntimeException("Not a MyLZW archive");
+        int version = header.getInt();
+        if (version < 1 || version > VERSION) throw new RuntimeException("Unsupported MyLZW archive version " + version);
+
+        ByteBuffer trailer = LZWFile.readFully(in, size - TRAILER_BYTES, TRAILER_BYTES);
+        long directoryOffset = trailer.getLong();
+        int count = trailer.getInt();
+        if (trailer.getInt() != MAGIC) throw new RuntimeException("Missing MyLZW archive trailer");
+        long directoryLength = size - TRAILER_BYTES - directoryOffset;
+        if (count < 0 || directoryOffset < HEADER_BYTES || directoryLength < 0 || directoryLength > Integer.MAX_VALUE)
+            throw new RuntimeException("Corrupt MyLZW archive directory");
+
+        ByteBuffer bytes = LZWFile.readFully(in, directoryOffset, (int) directoryLength);
+        DataInputStream directory = new DataInputStream(new ByteArrayInputStream(bytes.array()));
+        LZWArchive archive = new LZWArchive();
+        for (int i = 0; i < count; i++) {
+            Member m = new Member();
+            m.path = directory.readUTF();
+            m.offset = directory.readLong();
+            m.length = directory.readLong();
+            m.size = directory.readLong();
+            m.modified = directory.readLong();
+            if (version >= 2) {
+                m.hash = new byte[HASH_BYTES];
+                directory.readFully(m.hash);
+            }
+            archive.members.add(m);
+        }
+        archive.directoryOffset = directoryOffset;
+        return archive;
+    }
+
+   /**
+     * Extract the member named path from archiveFile into dir, or every
+     * member if path is null.
+     */
+    public static void extract(File archiveFile, final File dir, String path) throws IOException {
+        try (FileChannel in = new FileInputStream(archiveFile).getChannel()) {
+            LZWArchive archive = open(in, archiveFile);
+
+            List<Member> todo = new ArrayList<Member>();
+            for (Member m : archive.members)
+                if (path == null || m.path.equals(path)) todo.add(m);
+            if (path != null && todo.isEmpty())
+                throw new RuntimeException("No member " + path + " in " + archiveFile);
+
+            // a single member gets all cores to itself; otherwise one core per member
+            if (todo.size() == 1) {
+                extract(in, todo.get(0), dir, true);
+                return;
+            }
+            Collections.sort(todo, LARGEST_FIRST);
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (final Member m : todo) {
+                tasks.add(new Callable<Void>() {
+                    public Void call() {
+                        try {
+                            extract(in, m, dir, false);
+                        } catch (IOException | RuntimeException ex) {
+                            throw new RuntimeException(m.path + ": " + ex.getMessage());
+                        }
+                        return null;
+                    }
+                });
+            }
+            List<String> failures = MyLZW.runParallel(tasks, false);
+            if (!failures.isEmpty()) {
+                for (String failure : failures)
+                    System.err.println(failure);
+                throw new RuntimeException(failures.size() + " of " + todo.size() + " members failed");
+            }
+        }
+    }
+
+    private static void extract(FileChannel in, Member m, File dir, boolean parallel) throws IOException {
+        Path root = dir.toPath().toAbsolutePath().normalize();
+        Path target = root.resolve(m.path).normalize();
+        if (!target.startsWith(root) || target.equals(root))
+            throw new RuntimeException("Illegal member path " + m.path);
+        Files.createDirectories(target.getParent());
+
+        File outFile = target.toFile();
+        MyLZW.expand(in, LZWFile.open(in, m.offset, m.length), outFile, true, parallel);
+        outFile.setLastModified(m.modified);
+    }
+
+   /**
+     * Print the members of archiveFile with their original and compressed sizes.
+     */
+    public static void list(File archiveFile) throws IOException {
+        LZWArchive archive;
+        try (FileChannel in = new FileInputStream(archiveFile).getChannel()) {
+            archive = open(in, archiveFile);
+        }
+        for (Member m : archive.members)
+            System.out.printf("%12d %12d  %s%n", m.size, m.length, m.path);
+    }
+}
@@ -0,0 +1,171 @@
+/*************************************************************************
+ *  Compilation:  javac LZWCache.java
+ *  Dependencies: LZWArchive.java LZWFile.java
+ *
+ *  On-disk cache of compressed files, shared by every MyLZW run that
+ *  names the same cache directory. An entry is the complete MyLZW file
+ *  for some input, named by the SHA-256 of the input and everything
+ *  else that decides the output:
+ *
+ *    <sha256>-<mode>[d][l]-v<LZWFile.VERSION>.lzw
+ *
+ *  so a hit can be copied out instead of running the encoder. Entries
+ *  are written to a temp file and renamed into place, so a reader never
+ *  sees half an entry. A hit touches the entry's last-modified time,
+ *  and once the cache holds more than its limit the entries used least
+ *  recently are deleted first. Hits, misses and evictions are counted
+ *  in the file "stats", updated under a file lock.
+ *
+ *************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class LZWCache {
+    public static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+    private static final String STATS = "stats";
+    private static final String SUFFIX = ".lzw";
+    private static final int HITS = 0, MISSES = 1, EVICTIONS = 2;
+
+    private final File dir;
+    private final long maxBytes;
+
+    public LZWCache(File dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir.toPath());
+    }
+
+   /**
+     * The entry holding inFile compressed with the given mode, dedup
+     * setting and codeword layout, whether or not it exists yet.
+     */
+    public File entry(File inFile, int mode, boolean dedup, boolean lsbFirst) throws IOException {
+        StringBuilder name = new StringBuilder();
+        for (byte b : LZWArchive.hash(inFile))
+            name.append(String.format("%02x", b & 0xff));
+        name.append('-').append("nrm".charAt(mode));
+        if (dedup) name.append('d');
+        if (lsbFirst) name.append('l');
+        name.append("-v").append(LZWFile.VERSION).append(SUFFIX);
+        return new File(dir, name.toString());
+    }
+
+   /**
+     * Copy entry to outFile if it is in the cache.
+     * @return true on a hit
+     */
+    public boolean fetch(File entry, File outFile) throws IOException {
+        try {
+            Files.copy(entry.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException ex) {     // never stored, or evicted
+            count(MISSES, 1);
+            return false;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        count(HITS, 1);
+        return true;
+    }
+
+   /**
+     * Store the compressed file outFile as entry, then evict entries used
+     * least recently until the cache is within its limit.
+     */
+    public void store(File entry, File outFile) throws IOException {
+        File tmp = File.createTempFile("lzw", ".tmp", dir);
+        try {
+            Files.copy(outFile.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp.toPath(), entry.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+        evict();
+    }
+
+    private void evict() throws IOException {
+        File[] entries = entries();
+        long total = 0;
+        for (File f : entries)
+            total += f.length();
+        if (total <= maxBytes) return;
+
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        int evicted = 0;
+        for (int i = 0; i < entries.length && total > maxBytes; i++) {
+            long length = entries[i].length();
+            if (entries[i].delete()) {
+                total -= length;
+                evicted++;
+            }
+        }
+        count(EVICTIONS, evicted);
+    }
+
+    private File[] entries() {
+        File[] entries = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        return entries == null ? new File[0] : entries;
+    }
+
+    // add n to one of the counters in the stats file
+    private void count(int counter, long n) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, STATS), "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            FileLock lock = channel.lock();
+            long[] counts = readStats(channel);
+            counts[counter] += n;
+            ByteBuffer buf = ByteBuffer.allocate(24);
+            buf.putLong(counts[HITS]).putLong(counts[MISSES]).putLong(counts[EVICTIONS]);
+            buf.flip();
+            LZWFile.writeFully(channel.position(0), buf);
+            lock.release();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long[] readStats(FileChannel channel) throws IOException {
+        long[] counts = new long[3];
+        if (channel.size() < 24) return counts;
+        ByteBuffer buf = LZWFile.readFully(channel, 0, 24);
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = buf.getLong();
+        return counts;
+    }
+
+   /**
+     * Print the number of entries, their total size and the counters.
+     */
+    public void printStats() throws IOException {
+        File[] entries = entries();
+        long total = 0;
+        for (File f : entries)
+            total += f.length();
+        long[] counts = new long[3];
+        File stats = new File(dir, STATS);
+        if (stats.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(stats, "r")) {
+                counts = readStats(raf.getChannel());
+            }
+        }
+        long lookups = counts[HITS] + counts[MISSES];
+        System.out.printf("%s: %d entries, %d of %d bytes%n", dir, entries.length, total, maxBytes);
+        System.out.printf("hits %d, misses %d (%.1f%% hit rate), evictions %d%n", counts[HITS], counts[MISSES],
+                          lookups == 0 ? 0.0 : 100.0 * counts[HITS] / lookups, counts[EVICTIONS]);
+    }
+}
@@ -0,0 +1,125 @@
+/*************************************************************************
+ *  Compilation:  javac LZWCodec.java
+ *  Dependencies: BinaryStdIn.java LSBCodeIn.java LZWState.java
+ *
+ *  The LZW decoding loop used by MyLZW, applied to one block of input,
+ *  and the constants the encoders share with it.
+ *
+ *  Codewords start 9 bits wide and grow to 16 bits as the dictionary
+ *  fills. What happens once it is full depends on the mode:
+ *    n  do nothing, keep using the full dictionary
+ *    r  reset the dictionary
+ *    m  monitor the compression ratio and reset once it degrades
+ *  A reset is signalled with RESETFLAG and the block ends with ASCII.
+ *
+ *  Codewords are packed MSB-first, as BinaryStdIn reads them, or
+ *  LSB-first in little-endian words through LSBCodeIn; the loop is the
+ *  same either way. Blocks in both layouts are encoded by LZWCompressor.
+ *
+ *  Between width changes a block is a run of codewords of one width,
+ *  and the decoder knows how long each run is at least: the codewords
+ *  until the dictionary reaches the next power of two. Decoding a whole
+ *  payload unpacks them up to RUN at a time into an int[] and looks
+ *  them up from there.
+ *
+ *************************************************************************/
+
+import java.nio.ByteBuffer;
+
+public class LZWCodec {
+    public static final int MAXWIDTH = 16;
+    public static final int INITIALWIDTH = 9;
+    public static final int MODE_NOTHING = 0;
+    public static final int MODE_RESET = 1;
+    public static final int MODE_MONITOR = 2;
+
+    static final int ASCII = 256;                // end of block
+    static final int RESETFLAG = 257;            // dictionary reset
+    static final double COMPRESSION_RATIO_THRESHOLD = 1.1;
+    private static final int RUN = 1 << 10;      // most codewords unpacked at once
+
+    // where decode reads its codewords from: up to max of them, each
+    // width bits wide, fewer only at the end of the input
+    private interface CodeSource {
+        int readRun(int[] dst, int max, int width);
+    }
+
+    // codewords from a CodeSource, unpacked a run at a time
+    private static final class CodeReader {
+        private final CodeSource in;
+        private final int[] run;
+        private int next;
+        private int count;
+
+        CodeReader(CodeSource in, int runLength) {
+            this.in = in;
+            run = new int[runLength];
+        }
+
+        // the next codeword, which is width bits wide, as are at least
+        // the ahead - 1 after it
+        int read(int width, int ahead) {
+            if (next == count) {
+                count = in.readRun(run, Math.min(ahead, run.length), width);
+                next = 0;
+                if (count == 0) throw new RuntimeException("Reading from empty input stream");
+            }
+            return run[next++];
+        }
+    }
+
+    /**
+     * Decode the block whose codewords are the remaining bytes of payload,
+     * packed LSB-first if lsbFirst is set, into out, which must have
+     * exactly as many bytes remaining as the block decodes to. Each run
+     * of codewords of one width is unpacked up to RUN at a time. The
+     * position of payload is not changed.
+     *
+     * Makes the width and reset decisions LZWCompressor makes after each
+     * codeword with the same LZWState, so the decoder knows the width of
+     * the next codeword (including the RESETFLAG written after a reset in
+     * modes r and m).
+     */
+    public static void decode(ByteBuffer payload, boolean lsbFirst, int mode, int initialWidth, int maxWidth,
+                              ByteBuffer out) {
+        CodeSource in;
+        if (lsbFirst) in = new LSBCodeIn(payload)::readRun;
+        else          in = new BinaryStdIn(payload)::readRun;
+        decode(new CodeReader(in, RUN), mode, initialWidth, maxWidth, out);
+    }
+
+    private static void decode(CodeReader binaryIn, int mode, int initialWidth, int maxWidth, ByteBuffer out) {
+        LZWState state = new LZWState(mode, initialWidth, maxWidth);
+        String[] symbol = new String[1 << maxWidth];
+        for (int i = 0; i < ASCII; i++)
+            symbol[i] = "" + (char) i;
+        int pending = -1;      // code the encoder defined after the previous codeword
+        String val = null;     // string of the previous codeword
+
+        while (true) {
+            // codewords from here on that are W bits wide: up to the one
+            // read when the dictionary reaches L, or all of them once
+            // it is full in mode n
+            int ahead = state.freeCode < state.L ? state.L - state.freeCode + 1
+                      : state.W < maxWidth || mode != MODE_NOTHING ? 1 : RUN;
+            int codeword = binaryIn.read(state.W, ahead);
+            if (codeword == ASCII) break;
+
+            String s = (codeword == pending) ? val + val.charAt(0) : symbol[codeword];
+            if (s == null) throw new RuntimeException("Corrupt codeword " + codeword);
+            if (pending != -1) symbol[pending] = val + s.charAt(0);
+            if (out.remaining() < s.length()) throw new RuntimeException("Block longer than its recorded length");
+            for (int i = 0; i < s.length(); i++)
+                out.put((byte) s.charAt(i));
+
+            pending = state.next(s.length(), true);
+            if (pending == LZWState.RESET) {
+                pending = -1;
+                if (binaryIn.read(state.W, state.L - state.freeCode + 2) != RESETFLAG)
+                    throw new RuntimeException("Missing reset codeword");
+            }
+            val = s;
+        }
+        if (out.hasRemaining()) throw new RuntimeException("Block shorter than its recorded length");
+    }
+}
@@ -0,0 +1,283 @@
+/*************************************************************************
+ *  Compilation:  javac LZWCompressor.java
+ *  Dependencies: LZWCodec.java LZWState.java LZWDictionary.java CodeOut.java
+ *
+ *  A reusable context for LZW-compressing data already in memory. The
+ *  output is the codewords of one MyLZW block in the context's mode,
+ *  ending with ASCII, and reads back with LZWDecompressor or
+ *  LZWCodec.decode. They are packed MSB-first into a byte array, or
+ *  handed to any CodeOut, such as an LSBCodeOut for the LSB-first
+ *  layout; the codeword loop is the same either way.
+ *
+ *  The dictionary (an LZWDictionary) and the width, reset and monitor
+ *  decisions (an LZWState) are kept for the life of the context, and
+ *  are the ones LZWEncoder uses a call at a time. Once the scratch
+ *  array used for direct ByteBuffers and channels has grown to the
+ *  largest payload, compress allocates nothing.
+ *
+ *  A context is not thread-safe; forThread gives each thread its own,
+ *  and acquire lends one out of a shared pool.
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class LZWCompressor {
+    private static final ThreadLocal<LZWCompressor[]> LOCAL =
+        ThreadLocal.withInitial(() -> new LZWCompressor[LZWCodec.MODE_MONITOR + 1]);
+    private static final List<Queue<LZWCompressor>> POOL = new ArrayList<Queue<LZWCompressor>>();
+    static {
+        for (int mode = LZWCodec.MODE_NOTHING; mode <= LZWCodec.MODE_MONITOR; mode++)
+            POOL.add(new ConcurrentLinkedQueue<LZWCompressor>());
+    }
+
+    public final int mode;
+
+    private final LZWDictionary dictionary = new LZWDictionary();
+    private final LZWState state;
+    private byte[] scratch = new byte[0];                    // for direct buffers
+
+    // output of the call in progress
+    private byte[] out;
+    private int outPos;
+    private int outEnd;
+    private final ArrayCodeOut msbFirst = new ArrayCodeOut();
+
+    public LZWCompressor(int mode) {
+        state = new LZWState(mode);        // checks mode
+        this.mode = mode;
+    }
+
+   /**
+     * The calling thread's context for mode, created on first use.
+     */
+    public static LZWCompressor forThread(int mode) {
+        LZWCompressor[] contexts = LOCAL.get();
+        if (contexts[mode] == null) contexts[mode] = new LZWCompressor(mode);
+        return contexts[mode];
+    }
+
+   /**
+     * A context for mode from a pool shared by all threads, for threads
+     * too short-lived for forThread to pay off, such as a virtual thread
+     * per request. Hand it back with release once done.
+     */
+    public static LZWCompressor acquire(int mode) {
+        LZWCompressor context = POOL.get(mode).poll();
+        return context != null ? context : new LZWCompressor(mode);
+    }
+
+   /**
+     * Return this context, got from acquire, to the pool.
+     */
+    public void release() {
+        POOL.get(mode).offer(this);
+    }
+
+   /**
+     * The most bytes compress can write for n bytes of input: one 16-bit
+     * codeword per byte, plus the end codeword, the reset codewords and
+     * padding.
+     */
+    public static int maxCompressedLength(int n) {
+        return (int) Math.min(Integer.MAX_VALUE, 2L * n + (n >> 14) + 8);
+    }
+
+   /**
+     * Compress src[off, off + len) into dst from dstOff.
+     * @return the number of bytes written
+     * @throws RuntimeException if the output does not fit in dst
+     */
+    public int compress(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        return compress(src, off, len, dst, dstOff, dst.length);
+    }
+
+    // compress into dst[dstOff, dstEnd)
+    private int compress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstEnd) {
+        if (off < 0 || len < 0 || off + len > src.length || dstOff < 0 || dstOff > dstEnd || dstEnd > dst.length)
+            throw new IndexOutOfBoundsException();
+        out = dst;
+        outPos = dstOff;
+        outEnd = dstEnd;
+        msbFirst.clear();
+        try {
+            encode(src, off, off + len, msbFirst);
+            return outPos - dstOff;
+        } finally {
+            out = null;
+        }
+    }
+
+   /**
+     * Compress src into a new array of exactly the compressed length.
+     */
+    public byte[] compress(byte[] src) {
+        byte[] dst = new byte[maxCompressedLength(src.length)];
+        int n = compress(src, 0, src.length, dst, 0);
+        byte[] result = new byte[n];
+        System.arraycopy(dst, 0, result, 0, n);
+        return result;
+    }
+
+   /**
+     * Compress the remaining bytes of src into dst, advancing both.
+     * @return the number of bytes written
+     * @throws RuntimeException if the output does not fit in dst, whose
+     *         contents past its position are then undefined
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst) {
+        int len = src.remaining();
+        int max = Math.min(dst.remaining(), maxCompressedLength(len));
+
+        // a direct buffer goes through scratch: input first, then output
+        int inBytes = src.hasArray() ? 0 : len;
+        int outBytes = dst.hasArray() ? 0 : max;
+        if (scratch.length < inBytes + outBytes) scratch = new byte[inBytes + outBytes];
+        byte[] in = scratch;
+        int off = 0;
+        if (src.hasArray()) {
+            in = src.array();
+            off = src.arrayOffset() + src.position();
+        } else {
+            src.get(src.position(), scratch, 0, len);
+        }
+
+        int n;
+        if (dst.hasArray()) {
+            int start = dst.arrayOffset() + dst.position();
+            n = compress(in, off, len, dst.array(), start, start + max);
+            dst.position(dst.position() + n);
+        } else {
+            n = compress(in, off, len, scratch, inBytes, inBytes + max);
+            dst.put(scratch, inBytes, n);
+        }
+        src.position(src.limit());
+        return n;
+    }
+
+   /**
+     * Compress the remaining bytes of src, advancing it, and write the
+     * result to out, by way of the scratch array.
+     * @return the number of bytes written
+     */
+    public int compress(ByteBuffer src, WritableByteChannel out) throws IOException {
+        int len = src.remaining();
+        int max = maxCompressedLength(len);
+        int inBytes = src.hasArray() ? 0 : len;
+        if (scratch.length < inBytes + max) scratch = new byte[inBytes + max];
+        byte[] in = scratch;
+        int off = 0;
+        if (src.hasArray()) {
+            in = src.array();
+            off = src.arrayOffset() + src.position();
+        } else {
+            src.get(src.position(), scratch, 0, len);
+        }
+        int n = compress(in, off, len, scratch, inBytes, inBytes + max);
+        src.position(src.limit());
+        ByteBuffer result = ByteBuffer.wrap(scratch, inBytes, n);
+        while (result.hasRemaining())
+            out.write(result);
+        return n;
+    }
+
+   /**
+     * Compress the remaining bytes of src, advancing it, and write the
+     * codewords to codeOut, which is then flushed. A direct src goes
+     * through the scratch array.
+     */
+    public void compress(ByteBuffer src, CodeOut codeOut) {
+        int len = src.remaining();
+        byte[] in = scratch;
+        int off = 0;
+        if (src.hasArray()) {
+            in = src.array();
+            off = src.arrayOffset() + src.position();
+        } else {
+            if (scratch.length < len) scratch = in = new byte[len];
+            src.get(src.position(), scratch, 0, len);
+        }
+        encode(in, off, off + len, codeOut);
+        src.position(src.limit());
+    }
+
+    // encode in[pos, n) as one block to codeOut
+    private void encode(byte[] in, int pos, int n, CodeOut codeOut) {
+        LZWDictionary dictionary = this.dictionary;
+        LZWState state = this.state;
+        dictionary.clear();
+        state.reset();
+
+        while (pos < n) {
+            // longest match: extend by one byte while the dictionary has it
+            int code = in[pos] & 0xff;
+            int t = 1;
+            int slot = -1;
+            while (pos + t < n) {
+                slot = dictionary.find(LZWDictionary.key(code, in[pos + t]));
+                if (!dictionary.has(slot)) break;
+                code = dictionary.code(slot);
+                t++;
+            }
+
+            codeOut.write(code, state.W);
+            // slot is where (code, next byte) goes if there is a next byte
+            int next = state.next(t, pos + t < n);
+            if (next >= 0) {
+                dictionary.add(slot, LZWDictionary.key(code, in[pos + t]), next);
+            } else if (next == LZWState.RESET) {
+                dictionary.clear();
+                codeOut.write(LZWCodec.RESETFLAG, state.W);
+            }
+            pos += t;
+        }
+        codeOut.write(LZWCodec.ASCII, state.W);
+        codeOut.flush();
+    }
+
+    // packs codewords MSB-first into out[outPos, outEnd), as BinaryStdOut
+    // would, four bytes at a time
+    private final class ArrayCodeOut implements CodeOut {
+        private long buffer;
+        private int N;
+
+        // drop the bits a call that failed left behind
+        void clear() {
+            buffer = 0;
+            N = 0;
+        }
+
+        public void write(int code, int width) {
+            buffer = (buffer << width) | code;
+            N += width;
+            if (N >= 32) {
+                if (outEnd - outPos < 4) throw new RuntimeException("Compressed data does not fit in the output buffer");
+                N -= 32;
+                int x = (int) (buffer >>> N);
+                out[outPos++] = (byte) (x >>> 24);
+                out[outPos++] = (byte) (x >>> 16);
+                out[outPos++] = (byte) (x >>> 8);
+                out[outPos++] = (byte) x;
+            }
+        }
+
+        public void flush() {
+            if ((N & 7) != 0) {
+                buffer <<= 8 - (N & 7);
+                N += 8 - (N & 7);
+            }
+            if (outEnd - outPos < N / 8) throw new RuntimeException("Compressed data does not fit in the output buffer");
+            while (N > 0) {
+                N -= 8;
+                out[outPos++] = (byte) (buffer >>> N);
+            }
+            buffer = 0;
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*************************************************************************
+ *  Compilation:  javac LZWDaemon.java
+ *  Dependencies: MyLZW.java Pipeline.java LZWFile.java AsyncFileReader.java
+ *                AsyncFileWriter.java
+ *
+ *  A long-running MyLZW that takes its command lines over a socket, so
+ *  a run costs neither JVM startup nor JIT warm-up, and the pooled
+ *  LZWCompressor and LZWDecompressor contexts stay allocated from one
+ *  request to the next:
+ *
+ *    java MyLZW daemon <socketPath> [--memory <MB>]
+ *    java MyLZW --daemon <socketPath> - r in out
+ *
+ *  The client sends its arguments over the Unix-domain socket with
+ *  relative paths made absolute and prints what the request printed;
+ *  its exit status is the command's, or BUSY. Besides MyLZW's commands
+ *  the daemon answers daemon-stats, per-command latency histograms, and
+ *  daemon-stop.
+ *
+ *  Each connection carries one request and is served on a thread of its
+ *  own: a virtual thread where the JVM has them (looked up by
+ *  reflection, so this still compiles and runs on 17) and otherwise a
+ *  pooled platform thread. What a request prints to System.out and
+ *  System.err is routed back to its client. Admission control holds
+ *  requests whose estimated heap, per coding thread a block, its
+ *  codewords and a context, plus the buffers of --pipeline and --async,
+ *  would take the total in flight over the memory budget (half the
+ *  maximum heap by default); a request that cannot start within
+ *  ADMISSION_WAIT is turned away as BUSY.
+ *
+ *  Anyone who can connect can run commands as the daemon's user on any
+ *  file it can reach, so only that user may. The socket is bound in a
+ *  directory only the owner can enter, made owner-only (0600) there and
+ *  then moved into place, so it is never reachable with looser
+ *  permissions, and a connection from any other user, going by the
+ *  peer's credentials, is closed unanswered. There is no TCP listener.
+ *  A client that has not sent its whole request within REQUEST_TIMEOUT
+ *  is disconnected, so a stalled connection cannot hold a thread.
+ *
+ *************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import jdk.net.ExtendedSocketOptions;
+
+public class LZWDaemon {
+    public static final int OK = 0;
+    public static final int BUSY = 75;                // EX_TEMPFAIL
+    private static final int PROTOCOL = 0x4C5A5731;   // "LZW1"
+    private static final long ADMISSION_WAIT = 10;    // seconds
+    private static final long REQUEST_TIMEOUT = 10;   // seconds to send a request in
+    private static final long WORKER_BYTES = 8L << 20; // heap per worker thread
+    private static final int MB = 1 << 20;
+    private static final int MAX_ARGS = 1024;
+
+    private final Path socket;
+    private final Semaphore memory;                   // in MB
+    private final int budget;
+    private final Map<String, Histogram> latency = new ConcurrentHashMap<String, Histogram>();
+    private final AtomicLong rejected = new AtomicLong();
+    private final Router out;
+    private final Router err;
+    private volatile ServerSocketChannel server;
+    private UserPrincipal owner;                      // the only user served
+    private ScheduledExecutorService timeouts;
+
+    private LZWDaemon(Path socket, long memoryBytes) {
+        this.socket = socket;
+        budget = (int) Math.max(1, memoryBytes / MB);
+        memory = new Semaphore(budget, true);
+        out = new Router(System.out);
+        err = new Router(System.err);
+    }
+
+   /**
+     * Serve requests on the Unix-domain socket at socketPath until
+     * daemon-stop, with memoryBytes of heap for them to share, 0 for half
+     * the maximum heap.
+     * @return the exit status
+     */
+    public static int serve(String socketPath, long memoryBytes) {
+        if (memoryBytes <= 0) memoryBytes = Runtime.getRuntime().maxMemory() / 2;
+        try {
+            new LZWDaemon(Path.of(socketPath).toAbsolutePath(), memoryBytes).run();
+            return OK;
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            return 1;
+        }
+    }
+
+    private void run() throws IOException {
+        server = bind(socket);
+        owner = Files.getOwner(socket);
+        timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "MyLZW request timeout");
+            t.setDaemon(true);
+            return t;
+        });
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        System.setOut(new PrintStream(out, true));
+        System.setErr(new PrintStream(err, true));
+        ExecutorService requests = newRequestExecutor();
+        stderr.println("MyLZW daemon on " + socket + ", " + budget + " MB for requests");
+        try {
+            while (true) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (IOException ex) {
+                    if (!server.isOpen()) break;        // daemon-stop
+                    throw ex;
+                }
+                requests.execute(() -> handle(client));
+            }
+        } finally {
+            requests.shutdown();
+            timeouts.shutdownNow();
+            server.close();
+            Files.deleteIfExists(socket);
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+    }
+
+    // a server socket at socket that only its owner can connect to: bound
+    // in a new directory only the owner can enter, made owner-only there,
+    // then moved into place (replacing any stale socket), so at no point
+    // can anyone else reach it
+    private static ServerSocketChannel bind(Path socket) throws IOException {
+        Path dir = Files.createTempDirectory(socket.getParent(), ".mylzw",
+                                             PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Path bound = dir.resolve("socket");
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(bound));
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException ex) {
+            server.close();
+            Files.deleteIfExists(bound);
+            throw ex;
+        } finally {
+            Files.delete(dir);
+        }
+        return server;
+    }
+
+    // a virtual thread per task where Executors has them, which it does
+    // from 21 on (19 and 20 with --enable-preview), else a thread pool
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "MyLZW request");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        long start = System.nanoTime();
+        // closing the client ends a read that is still waiting
+        ScheduledFuture<?> timeout = timeouts.schedule(() -> close(client), REQUEST_TIMEOUT, TimeUnit.SECONDS);
+        try {
+            UserPrincipal peer = client.getOption(ExtendedSocketOptions.SO_PEERCRED).user();
+            if (!peer.equals(owner)) throw new IOException("Connection from " + peer.getName() + " refused");
+            String[] args;
+            try {
+                args = readRequest(new DataInputStream(Channels.newInputStream(client)));
+            } catch (AsynchronousCloseException ex) {
+                args = null;                            // closed by the timeout
+            }
+            if (!timeout.cancel(false) || args == null)
+                throw new IOException("Request not sent within " + REQUEST_TIMEOUT + " s");
+            DataOutputStream reply = new DataOutputStream(Channels.newOutputStream(client));
+            String command = command(args);
+
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            int status;
+            try {
+                if (command.equals("daemon-stats")) {
+                    stdout.write(stats().getBytes());
+                    status = OK;
+                } else if (command.equals("daemon-stop")) {
+                    status = OK;
+                } else if (command.equals("daemon") || Arrays.asList(args).contains("--daemon")) {
+                    stderr.write("A daemon does not start or forward to another\n".getBytes());
+                    status = 1;
+                } else {
+                    status = execute(args, stdout, stderr);     // no command: the usage, and 1
+                }
+            } catch (RuntimeException ex) {                     // still answer the client
+                stderr.write(("MyLZW daemon: " + ex).getBytes());
+                stderr.write('\n');
+                status = 1;
+            }
+
+            reply.writeInt(status);
+            reply.writeInt(stdout.size());
+            stdout.writeTo(reply);
+            reply.writeInt(stderr.size());
+            stderr.writeTo(reply);
+            reply.flush();
+            if (status != BUSY && !command.isEmpty()) histogram(command).record((System.nanoTime() - start) / 1000);
+            if (command.equals("daemon-stop")) server.close();
+        } catch (IOException | RuntimeException ex) {
+            err.fallback.println("MyLZW daemon: " + ex);
+        } finally {
+            timeout.cancel(false);
+            close(client);
+        }
+    }
+
+    private static String[] readRequest(DataInputStream in) throws IOException {
+        if (in.readInt() != PROTOCOL) throw new IOException("Not a MyLZW client");
+        int argc = in.readInt();
+        if (argc < 0 || argc > MAX_ARGS) throw new IOException("Bad request: " + argc + " arguments");
+        String[] args = new String[argc];
+        for (int i = 0; i < args.length; i++)
+            args[i] = in.readUTF();
+        return args;
+    }
+
+    private static void close(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    // run args once admitted, with what it prints captured
+    private int execute(String[] args, ByteArrayOutputStream stdout, ByteArrayOutputStream stderr) throws IOException {
+        int cost = (int) Math.min(budget, (cost(args) + MB - 1) / MB);
+        try {
+            if (!memory.tryAcquire(cost, ADMISSION_WAIT, TimeUnit.SECONDS)) {
+                rejected.incrementAndGet();
+                stderr.write(("MyLZW daemon busy: " + (budget - memory.availablePermits()) + " of "
+                              + budget + " MB in use").getBytes());
+                stderr.write('\n');
+                return BUSY;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return BUSY;
+        }
+        out.capture(stdout);
+        err.capture(stderr);
+        try {
+            return MyLZW.run(args);
+        } catch (RuntimeException ex) {
+            System.err.println(ex.getMessage());
+            return 1;
+        } finally {
+            out.capture(null);
+            err.capture(null);
+            memory.release(cost);
+        }
+    }
+
+    // the command of args: its first operand, skipping options and their
+    // values as MyLZW.run does, or "" if there is none
+    private static String command(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (MyLZW.takesValue(args[i])) i++;
+            else if (!args[i].startsWith("--")) return args[i];
+        }
+        return "";
+    }
+
+    // heap that args may hold at once: WORKER_BYTES for each thread coding
+    // blocks, which is every core for test, archive, extract and a plain
+    // expand, plus the rings of --pipeline and the buffers of --async
+    private static long cost(String[] args) {
+        String command = command(args);
+        boolean pipeline = false, async = false, limited = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--read-limit") || args[i].equals("--write-limit")) limited = true;
+            if (MyLZW.takesValue(args[i])) i++;
+            else if (args[i].equals("--pipeline")) pipeline = true;
+            else if (args[i].equals("--async"))    async = true;
+        }
+        boolean codec = command.equals("-") || command.equals("+");
+        long bytes = WORKER_BYTES;
+        if (command.equals("test") || command.equals("archive") || command.equals("extract")
+                || command.equals("+") && !pipeline && !async && !limited)
+            bytes *= Runtime.getRuntime().availableProcessors();
+        if (codec && pipeline)          // two rings of slots, each a block and its codewords
+            bytes += 2L * Pipeline.DEPTH * 2 * LZWFile.BLOCK_SIZE;
+        if (codec && async)
+            bytes += (long) AsyncFileReader.BUFFERS * AsyncFileReader.BUFFER_SIZE
+                   + (long) AsyncFileWriter.BUFFERS * AsyncFileWriter.BUFFER_SIZE;
+        return bytes;
+    }
+
+    private Histogram histogram(String command) {
+        return latency.computeIfAbsent(command, c -> new Histogram());
+    }
+
+    private String stats() {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("%-8s %8s %10s %10s %10s %10s%n", "command", "count", "p50 us", "p90 us", "p99 us", "max us"));
+        for (Map.Entry<String, Histogram> e : latency.entrySet())
+            s.append(e.getValue().summary(e.getKey()));
+        s.append("busy rejections: ").append(rejected.get()).append('\n');
+        s.append("memory in use: ").append(budget - memory.availablePermits()).append(" of ").append(budget).append(" MB\n");
+        for (Map.Entry<String, Histogram> e : latency.entrySet())
+            s.append(e.getValue().buckets(e.getKey()));
+        return s.toString();
+    }
+
+   /**
+     * Send args to the daemon on the Unix-domain socket at socketPath,
+     * print what it printed and return its exit status.
+     */
+    public static int forward(String socketPath, String[] args) {
+        try {
+            SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                channel.connect(UnixDomainSocketAddress.of(Path.of(socketPath)));
+                DataOutputStream request = new DataOutputStream(Channels.newOutputStream(channel));
+                String[] absolute = absolutePaths(args);
+                request.writeInt(PROTOCOL);
+                request.writeInt(absolute.length);
+                for (String arg : absolute)
+                    request.writeUTF(arg);
+                request.flush();
+
+                DataInputStream reply = new DataInputStream(Channels.newInputStream(channel));
+                int status = reply.readInt();
+                byte[] stdout = new byte[reply.readInt()];
+                reply.readFully(stdout);
+                byte[] stderr = new byte[reply.readInt()];
+                reply.readFully(stderr);
+                System.out.write(stdout);
+                System.out.flush();
+                System.err.write(stderr);
+                System.err.flush();
+                return status;
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            System.err.println("MyLZW daemon at " + socketPath + ": " + ex.getMessage());
+            return 1;
+        }
+    }
+
+    // args with the paths in them made absolute, since the daemon has a
+    // working directory of its own; follows the command lines of MyLZW.run
+    private static String[] absolutePaths(String[] args) {
+        String[] result = args.clone();
+        int operand = 0;
+        String command = null;
+        for (int i = 0; i < result.length; i++) {
+            String arg = result[i];
+            if (arg.equals("--cache") && i + 1 < result.length) {
+                result[i + 1] = absolute(result[i + 1]);
+                i++;
+            } else if (MyLZW.takesValue(arg)) {
+                i++;
+            } else if (!arg.startsWith("--")) {
+                if (operand == 0) command = arg;
+                else if (isPath(command, operand)) result[i] = absolute(arg);
+                operand++;
+            }
+        }
+        return result;
+    }
+
+    // whether operand k (the command is 0) of command is a file
+    private static boolean isPath(String command, int k) {
+        switch (command) {
+        case "-":
+        case "archive":
+            return k == 2 || k == 3;                // after the mode
+        case "+":
+        case "append":
+        case "extract":
+            return k == 1 || k == 2;                // not extract's member
+        case "test":
+        case "list":
+        case "cache":
+            return k == 1;
+        default:
+            return false;
+        }
+    }
+
+    private static String absolute(String path) {
+        return new File(path).getAbsolutePath();
+    }
+
+    // System.out or System.err while serving: a request thread's output goes
+    // to its capture, everything else to where the stream went before
+    private static final class Router extends OutputStream {
+        final PrintStream fallback;
+        private final ThreadLocal<ByteArrayOutputStream> target = new ThreadLocal<ByteArrayOutputStream>();
+
+        Router(PrintStream fallback) {
+            this.fallback = fallback;
+        }
+
+        void capture(ByteArrayOutputStream buffer) {
+            if (buffer == null) target.remove();
+            else                target.set(buffer);
+        }
+
+        public void write(int b) {
+            ByteArrayOutputStream t = target.get();
+            if (t != null) t.write(b);
+            else           fallback.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) {
+            ByteArrayOutputStream t = target.get();
+            if (t != null) t.write(b, off, len);
+            else           fallback.write(b, off, len);
+        }
+
+        public void flush() {
+            if (target.get() == null) fallback.flush();
+        }
+    }
+
+    // latencies in microseconds, in power-of-two buckets: bucket i counts
+    // those from 2^i up to 2^(i+1), so percentiles are good to a factor of 2
+    private static final class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long micros) {
+            counts.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, micros)));
+            count.incrementAndGet();
+            max.accumulateAndGet(micros, Math::max);
+        }
+
+        // upper bound of the bucket holding the p-th fraction
+        long percentile(double p) {
+            long n = count.get();
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += counts.get(i);
+                if (seen > 0 && seen >= p * n) return Math.min(max.get(), (1L << (i + 1)) - 1);
+            }
+            return max.get();
+        }
+
+        String summary(String command) {
+            return String.format("%-8s %8d %10d %10d %10d %10d%n", command, count.get(),
+                                 percentile(0.5), percentile(0.9), percentile(0.99), max.get());
+        }
+
+        String buckets(String command) {
+            StringBuilder s = new StringBuilder(command + ":");
+            for (int i = 0; i < 64; i++)
+                if (counts.get(i) > 0) s.append(" <").append(1L << (i + 1)).append("us=").append(counts.get(i));
+            return s.append('\n').toString();
+        }
+    }
+}
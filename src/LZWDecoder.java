@@ -0,0 +1,241 @@
+/*************************************************************************
+ *  Compilation:  javac LZWDecoder.java
+ *  Dependencies: LZWCodec.java LZWState.java
+ *
+ *  LZW decompression as a state machine in the manner of
+ *  java.util.zip.Inflater, the reverse of LZWEncoder: hand it input
+ *  with setInput and call decompress with whatever output space there
+ *  is. It stops wherever either runs out, with part of a codeword read
+ *  or part of a string written, and carries on from there on the next
+ *  call; finished is set once the ASCII codeword ending the block has
+ *  been read and its string written, and getRemaining then tells how
+ *  many bytes of the input came after it.
+ *
+ *  Since the output may be gone by the time a code refers back to it,
+ *  the dictionary stands on its own: each code is its prefix code and
+ *  last byte, and a string is spelled out back to front by following
+ *  prefixes, into the output when it has room and otherwise into a
+ *  string buffer that the next calls empty. The width and reset
+ *  decisions are LZWEncoder's, made by an LZWState.
+ *
+ *************************************************************************/
+
+import java.nio.ByteBuffer;
+
+public class LZWDecoder {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int CODES = 1 << LZWCodec.MAXWIDTH;
+
+    public final int mode;
+
+    private final int[] prefix = new int[CODES];
+    private final byte[] suffix = new byte[CODES];
+    private final byte[] first = new byte[CODES];        // first byte of the string
+    private final int[] length = new int[CODES];
+    private final byte[] string = new byte[CODES];       // spelled out, not yet written
+    private int stringPos;
+    private int stringEnd;
+
+    private ByteBuffer input = EMPTY;
+    private boolean finished;
+
+    // the codeword loop, suspended
+    private final LZWState state;
+    private int pending;                // code encode defined after the previous codeword
+    private int prev;                   // the previous codeword
+    private boolean expectReset;        // the next codeword is RESETFLAG
+
+    // bits read from the input but not yet used, the last N of buffer
+    private long buffer;
+    private int N;
+
+    private long bytesRead;
+    private long bytesWritten;
+
+    public LZWDecoder(int mode) {
+        state = new LZWState(mode);        // checks mode
+        this.mode = mode;
+        for (int i = 0; i < LZWCodec.ASCII; i++) {
+            first[i] = (byte) i;
+            length[i] = 1;
+        }
+        reset();
+    }
+
+   /**
+     * Start a new stream, dropping any input and output not yet taken.
+     */
+    public void reset() {
+        state.reset();
+        pending = -1;
+        prev = -1;
+        expectReset = false;
+        buffer = 0;
+        N = 0;
+        stringPos = 0;
+        stringEnd = 0;
+        input = EMPTY;
+        finished = false;
+        bytesRead = 0;
+        bytesWritten = 0;
+    }
+
+   /**
+     * Decompress b[off, off + len) next. The array is read as decompress
+     * goes, so it must not change until needsInput.
+     */
+    public void setInput(byte[] b, int off, int len) {
+        setInput(ByteBuffer.wrap(b, off, len));
+    }
+
+    public void setInput(byte[] b) {
+        setInput(b, 0, b.length);
+    }
+
+   /**
+     * Decompress the remaining bytes of in next, advancing its position
+     * as they are consumed. Any input left from before is dropped.
+     */
+    public void setInput(ByteBuffer in) {
+        input = in;
+    }
+
+   /**
+     * True when decompress can do nothing more until it is given input.
+     */
+    public boolean needsInput() {
+        return !finished && stringPos == stringEnd && !input.hasRemaining();
+    }
+
+   /**
+     * True once the end of the block has been read and all of its output
+     * taken.
+     */
+    public boolean finished() {
+        return finished && stringPos == stringEnd;
+    }
+
+   /**
+     * The bytes of the input not consumed, which once finished are the
+     * ones after the block.
+     */
+    public int getRemaining() {
+        return input.remaining();
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+   /**
+     * Decompress into b[off, off + len).
+     * @return the number of bytes written, 0 if more input or space is needed
+     */
+    public int decompress(byte[] b, int off, int len) {
+        return decompress(ByteBuffer.wrap(b, off, len));
+    }
+
+   /**
+     * Decompress as much as fits into the remaining space of out.
+     * @return the number of bytes written, 0 if more input or space is needed
+     * @throws RuntimeException if the input is not a valid block
+     */
+    public int decompress(ByteBuffer out) {
+        int start = out.position();
+        while (true) {
+            if (stringPos < stringEnd) {
+                int n = Math.min(out.remaining(), stringEnd - stringPos);
+                out.put(string, stringPos, n);
+                stringPos += n;
+                if (stringPos < stringEnd) break;       // out is full
+            }
+            if (finished || !out.hasRemaining()) break;
+
+            int codeword = read(state.W);
+            if (codeword < 0) break;                    // input is needed
+            if (expectReset) {
+                if (codeword != LZWCodec.RESETFLAG) throw new RuntimeException("Missing reset codeword");
+                expectReset = false;
+                continue;
+            }
+            if (codeword == LZWCodec.ASCII) {
+                finished = true;
+                break;
+            }
+            pending = state.next(expand(codeword, out), true);
+            if (pending == LZWState.RESET) {
+                pending = -1;
+                expectReset = true;
+            }
+        }
+        int n = out.position() - start;
+        bytesWritten += n;
+        return n;
+    }
+
+    // define the pending code and write the string of codeword, into out
+    // if it fits and otherwise into string; returns its length
+    private int expand(int codeword, ByteBuffer out) {
+        int firstByte;
+        if (codeword < LZWCodec.ASCII)
+            firstByte = codeword;
+        else if (codeword == pending)
+            firstByte = first[prev];                    // prev + its first byte
+        else if (codeword > LZWCodec.RESETFLAG && codeword < state.freeCode)
+            firstByte = first[codeword];
+        else
+            throw new RuntimeException("Corrupt codeword " + codeword);
+        if (pending != -1) {
+            prefix[pending] = prev;
+            suffix[pending] = (byte) firstByte;
+            first[pending] = first[prev];
+            length[pending] = length[prev] + 1;
+        }
+
+        prev = codeword;
+        int n = length[codeword];
+        if (n == 1) {
+            out.put((byte) codeword);
+            return 1;
+        }
+        byte[] dst = string;
+        int base = 0;
+        if (out.hasArray() && out.remaining() >= n) {
+            dst = out.array();
+            base = out.arrayOffset() + out.position();
+        }
+        int c = codeword;
+        for (int i = n - 1; i > 0; i--) {
+            dst[base + i] = suffix[c];
+            c = prefix[c];
+        }
+        dst[base] = (byte) c;
+        if (dst == string) {
+            stringPos = 0;
+            stringEnd = n;
+            int k = Math.min(out.remaining(), n);
+            out.put(string, 0, k);
+            stringPos = k;
+        } else {
+            out.position(out.position() + n);
+        }
+        return n;
+    }
+
+    // the next width-bit codeword, MSB-first, or -1 if the input runs out
+    // first, keeping the bits read so far
+    private int read(int width) {
+        while (N < width) {
+            if (!input.hasRemaining()) return -1;
+            buffer = (buffer << 8) | (input.get() & 0xff);
+            N += 8;
+            bytesRead++;
+        }
+        N -= width;
+        return (int) (buffer >>> N) & ((1 << width) - 1);
+    }
+}
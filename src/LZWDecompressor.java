@@ -0,0 +1,224 @@
+/*************************************************************************
+ *  Compilation:  javac LZWDecompressor.java
+ *  Dependencies: LZWCodec.java LZWState.java
+ *
+ *  A reusable context for decompressing a block payload already in
+ *  memory: the MSB-first codewords LZWCompressor writes for one block,
+ *  ending with ASCII.
+ *
+ *  The output doubles as the dictionary. Every string a code stands for
+ *  has been written out before, so the dictionary is just where that
+ *  is (start) and how long it is (length), in int arrays kept for the
+ *  life of the context, and looking a code up copies bytes from earlier
+ *  in the output. The entry encode adds after each codeword is the
+ *  previous string plus the first byte of the next, which sits right
+ *  after it in the output, so it is the previous entry one byte longer.
+ *  Nothing is cleared between payloads or on a reset: which codes are
+ *  defined follows from the next free code alone. Once the scratch
+ *  array used for direct ByteBuffers has grown to the largest payload,
+ *  decompress allocates nothing.
+ *
+ *  A context is not thread-safe; forThread gives each thread its own,
+ *  and acquire lends one out of a shared pool.
+ *
+ *************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class LZWDecompressor {
+    private static final ThreadLocal<LZWDecompressor[]> LOCAL =
+        ThreadLocal.withInitial(() -> new LZWDecompressor[LZWCodec.MODE_MONITOR + 1]);
+    private static final List<Queue<LZWDecompressor>> POOL = new ArrayList<Queue<LZWDecompressor>>();
+    static {
+        for (int mode = LZWCodec.MODE_NOTHING; mode <= LZWCodec.MODE_MONITOR; mode++)
+            POOL.add(new ConcurrentLinkedQueue<LZWDecompressor>());
+    }
+
+    public final int mode;
+
+    private final int[] start = new int[1 << LZWCodec.MAXWIDTH];    // offset in the output
+    private final int[] length = new int[1 << LZWCodec.MAXWIDTH];
+    private final LZWState state;
+    private byte[] scratch = new byte[0];                          // for direct buffers
+
+    // input of the call in progress
+    private byte[] in;
+    private int inPos;
+    private int inEnd;
+    private long buffer;
+    private int N;
+    private int consumed;    // input offset just past the payload
+
+    public LZWDecompressor(int mode) {
+        state = new LZWState(mode);        // checks mode
+        this.mode = mode;
+    }
+
+   /**
+     * The calling thread's context for mode, created on first use.
+     */
+    public static LZWDecompressor forThread(int mode) {
+        LZWDecompressor[] contexts = LOCAL.get();
+        if (contexts[mode] == null) contexts[mode] = new LZWDecompressor(mode);
+        return contexts[mode];
+    }
+
+   /**
+     * A context for mode from a pool shared by all threads, for threads
+     * too short-lived for forThread to pay off, such as a virtual thread
+     * per request. Hand it back with release once done.
+     */
+    public static LZWDecompressor acquire(int mode) {
+        LZWDecompressor context = POOL.get(mode).poll();
+        return context != null ? context : new LZWDecompressor(mode);
+    }
+
+   /**
+     * Return this context, got from acquire, to the pool.
+     */
+    public void release() {
+        POOL.get(mode).offer(this);
+    }
+
+   /**
+     * Decompress the payload in src[off, off + len) into dst[dstOff,
+     * dstOff + dstLen).
+     * @return the number of bytes written
+     * @throws RuntimeException if the payload is corrupt or its output
+     *         does not fit in dstLen bytes
+     */
+    public int decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen) {
+        if (off < 0 || len < 0 || off + len > src.length || dstOff < 0 || dstLen < 0 || dstOff + dstLen > dst.length)
+            throw new IndexOutOfBoundsException();
+        in = src;
+        inPos = off;
+        inEnd = off + len;
+        buffer = 0;
+        N = 0;
+        try {
+            return decode(dst, dstOff, dstOff + dstLen) - dstOff;
+        } finally {
+            in = null;
+        }
+    }
+
+   /**
+     * Decompress the payload at the position of src into dst, advancing
+     * src past it and dst past the output.
+     * @return the number of bytes written
+     * @throws RuntimeException if the payload is corrupt or its output
+     *         does not fit in dst
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst) {
+        int len = src.remaining();
+        int max = dst.remaining();
+
+        // a direct buffer goes through scratch: input first, then output
+        int inBytes = src.hasArray() ? 0 : len;
+        int outBytes = dst.hasArray() ? 0 : max;
+        if (scratch.length < inBytes + outBytes) scratch = new byte[inBytes + outBytes];
+        byte[] data = scratch;
+        int off = 0;
+        if (src.hasArray()) {
+            data = src.array();
+            off = src.arrayOffset() + src.position();
+        } else {
+            src.get(src.position(), scratch, 0, len);
+        }
+
+        int n;
+        if (dst.hasArray()) {
+            n = decompress(data, off, len, dst.array(), dst.arrayOffset() + dst.position(), max);
+            dst.position(dst.position() + n);
+        } else {
+            n = decompress(data, off, len, scratch, inBytes, max);
+            dst.put(scratch, inBytes, n);
+        }
+        src.position(src.position() + consumed - off);
+        return n;
+    }
+
+    // LZWCodec.decode into out[pos, end), making the same width, reset
+    // and monitor decisions after each codeword; returns the end of the
+    // output
+    private int decode(byte[] out, int pos, int end) {
+        LZWState state = this.state;
+        state.reset();
+        int pending = -1;      // code encode defined after the previous codeword
+        int prevStart = 0;     // where the string of the previous codeword is
+        int prevLength = 0;
+
+        while (true) {
+            int codeword = read(state.W);
+            if (codeword == LZWCodec.ASCII) break;
+
+            int s = pos;
+            int n;
+            if (codeword < LZWCodec.ASCII) {
+                if (pos == end) throw new RuntimeException("Decompressed data does not fit in the output buffer");
+                out[pos] = (byte) codeword;
+                n = 1;
+            } else if (codeword == pending) {
+                n = prevLength + 1;
+                if (end - pos < n) throw new RuntimeException("Decompressed data does not fit in the output buffer");
+                copy(out, prevStart, pos, prevLength);
+                out[pos + prevLength] = out[prevStart];
+            } else if (codeword > LZWCodec.RESETFLAG && codeword < state.freeCode) {
+                n = length[codeword];
+                if (end - pos < n) throw new RuntimeException("Decompressed data does not fit in the output buffer");
+                copy(out, start[codeword], pos, n);
+            } else {
+                throw new RuntimeException("Corrupt codeword " + codeword);
+            }
+            if (pending != -1) {
+                start[pending] = prevStart;
+                length[pending] = prevLength + 1;
+            }
+            pos += n;
+
+            pending = state.next(n, true);
+            if (pending == LZWState.RESET) {
+                pending = -1;
+                if (read(state.W) != LZWCodec.RESETFLAG) throw new RuntimeException("Missing reset codeword");
+            }
+            prevStart = s;
+            prevLength = n;
+        }
+        consumed = inPos - N / 8;    // the padding is less than a byte
+        return pos;
+    }
+
+    // copy n bytes from earlier in a to to; the ranges never overlap
+    private static void copy(byte[] a, int from, int to, int n) {
+        if (n <= 16) {
+            for (int i = 0; i < n; i++)
+                a[to + i] = a[from + i];
+        } else {
+            System.arraycopy(a, from, a, to, n);
+        }
+    }
+
+    // the next width-bit codeword, MSB-first
+    private int read(int width) {
+        if (N < width) {
+            if (inEnd - inPos >= 4) {
+                buffer = (buffer << 32) | (in[inPos] & 0xffL) << 24 | (in[inPos + 1] & 0xff) << 16
+                       | (in[inPos + 2] & 0xff) << 8 | (in[inPos + 3] & 0xff);
+                inPos += 4;
+                N += 32;
+            } else {
+                while (N < width) {
+                    if (inPos == inEnd) throw new RuntimeException("Reading from empty input stream");
+                    buffer = (buffer << 8) | (in[inPos++] & 0xff);
+                    N += 8;
+                }
+            }
+        }
+        N -= width;
+        return (int) (buffer >>> N) & ((1 << width) - 1);
+    }
+}
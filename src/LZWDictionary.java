@@ -0,0 +1,70 @@
+/*************************************************************************
+ *  Compilation:  javac LZWDictionary.java
+ *
+ *  The encoders' dictionary: an open-addressing hash table from (prefix
+ *  code, next byte) to code, in int arrays kept for the life of the
+ *  table. Each slot is stamped with the generation that filled it, so
+ *  starting a new dictionary is one increment rather than a clear, and
+ *  a small block costs time in proportion to its own length.
+ *
+ *  Looking up a string one byte longer than a known one is find on its
+ *  key, then has to see whether the slot is filled, and if it is not,
+ *  add puts the new code in that same slot.
+ *
+ *************************************************************************/
+
+import java.util.Arrays;
+
+public class LZWDictionary {
+    private static final int TABLE_BITS = 17;          // twice the largest dictionary
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+
+    private final int[] keys = new int[1 << TABLE_BITS];     // prefix << 8 | next byte
+    private final int[] codes = new int[1 << TABLE_BITS];    // code of that string
+    private final int[] stamps = new int[1 << TABLE_BITS];   // generation that filled the slot
+    private int generation = 1;
+
+   /**
+     * The key of the string of code followed by b.
+     */
+    public static int key(int code, int b) {
+        return code << 8 | (b & 0xff);
+    }
+
+   /**
+     * Empty the dictionary; the single bytes are implicit.
+     */
+    public void clear() {
+        if (++generation == 0) {                 // stamps have wrapped: start over
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+    }
+
+   /**
+     * The slot holding key, or the empty slot where it would go.
+     */
+    public int find(int key) {
+        int i = (key * 0x9E3779B1) >>> (32 - TABLE_BITS);
+        while (stamps[i] == generation && keys[i] != key)
+            i = (i + 1) & TABLE_MASK;
+        return i;
+    }
+
+    public boolean has(int slot) {
+        return stamps[slot] == generation;
+    }
+
+    public int code(int slot) {
+        return codes[slot];
+    }
+
+   /**
+     * Define code as key, in the empty slot find gave for it.
+     */
+    public void add(int slot, int key, int code) {
+        keys[slot] = key;
+        codes[slot] = code;
+        stamps[slot] = generation;
+    }
+}
@@ -0,0 +1,216 @@
+/*************************************************************************
+ *  Compilation:  javac LZWEncoder.java
+ *  Dependencies: LZWCodec.java LZWState.java LZWDictionary.java
+ *
+ *  LZW compression as a state machine in the manner of
+ *  java.util.zip.Deflater, for callers that own the I/O and must never
+ *  block, such as a selector loop: hand it input with setInput, call
+ *  compress with whatever output space there is, and call finish once
+ *  the input is complete. It reads only from the buffer it was given
+ *  and writes only to the one passed to compress, and stops wherever
+ *  either runs out, in the middle of a match or of a codeword, carrying
+ *  on from there on the next call.
+ *
+ *  The output is a single LZWCodec block of any length, MSB-first: for
+ *  input that fits in memory it is exactly what LZWCompressor.compress
+ *  gives for all of it at once, however it was divided into calls, as
+ *  both keep their dictionary in an LZWDictionary and make their width,
+ *  reset and monitor decisions with an LZWState. LZWDecoder reads the
+ *  output back.
+ *
+ *************************************************************************/
+
+import java.nio.ByteBuffer;
+
+public class LZWEncoder {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    public final int mode;
+
+    private final LZWDictionary dictionary = new LZWDictionary();
+    private final LZWState state;
+
+    private ByteBuffer input = EMPTY;
+    private boolean finish;             // no input after what has been set
+    private boolean finished;           // and all of the output has been taken
+
+    // the codeword loop, suspended
+    private int code;                   // the match so far, -1 for none
+    private int t;                      // bytes in it
+    private boolean ended;              // ASCII written
+
+    // bits not yet in the output, the last N of buffer
+    private long buffer;
+    private int N;
+
+    private long bytesRead;
+    private long bytesWritten;
+
+    public LZWEncoder(int mode) {
+        state = new LZWState(mode);        // checks mode
+        this.mode = mode;
+        reset();
+    }
+
+   /**
+     * Start a new stream, dropping any input and output not yet taken.
+     */
+    public void reset() {
+        dictionary.clear();
+        state.reset();
+        code = -1;
+        t = 0;
+        ended = false;
+        buffer = 0;
+        N = 0;
+        input = EMPTY;
+        finish = false;
+        finished = false;
+        bytesRead = 0;
+        bytesWritten = 0;
+    }
+
+   /**
+     * Compress b[off, off + len) next. The array is read as compress
+     * goes, so it must not change until needsInput.
+     */
+    public void setInput(byte[] b, int off, int len) {
+        setInput(ByteBuffer.wrap(b, off, len));
+    }
+
+    public void setInput(byte[] b) {
+        setInput(b, 0, b.length);
+    }
+
+   /**
+     * Compress the remaining bytes of in next, advancing its position as
+     * they are consumed. Any input left from before is dropped.
+     */
+    public void setInput(ByteBuffer in) {
+        if (finish) throw new IllegalStateException("Input after finish");
+        input = in;
+    }
+
+   /**
+     * True when all of the input has been consumed; the match in progress
+     * waits for more, or for finish.
+     */
+    public boolean needsInput() {
+        return !input.hasRemaining();
+    }
+
+   /**
+     * The input ends with what has been set.
+     */
+    public void finish() {
+        finish = true;
+    }
+
+   /**
+     * True once finish has been called and all of the output taken.
+     */
+    public boolean finished() {
+        return finished;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+   /**
+     * Compress into b[off, off + len).
+     * @return the number of bytes written, 0 if more input or space is needed
+     */
+    public int compress(byte[] b, int off, int len) {
+        return compress(ByteBuffer.wrap(b, off, len));
+    }
+
+   /**
+     * Compress as much as fits into the remaining space of out.
+     * @return the number of bytes written, 0 if more input or space is needed
+     */
+    public int compress(ByteBuffer out) {
+        int start = out.position();
+        while (true) {
+            drain(out);
+            if (N >= 32) break;                 // out is full
+            if (ended) {
+                finished = N == 0;
+                break;
+            }
+            if (!step()) break;                 // input is needed
+        }
+        int n = out.position() - start;
+        bytesWritten += n;
+        return n;
+    }
+
+    // extend the match by the input, writing its codeword once the next
+    // byte does not extend it, or at the end; false if input is needed
+    private boolean step() {
+        if (code < 0) {
+            if (input.hasRemaining()) {
+                code = input.get() & 0xff;
+                t = 1;
+                bytesRead++;
+            } else if (finish) {
+                write(LZWCodec.ASCII, state.W);
+                if ((N & 7) != 0) {             // pad the last byte with 0s
+                    buffer <<= 8 - (N & 7);
+                    N += 8 - (N & 7);
+                }
+                ended = true;
+                return true;
+            } else {
+                return false;
+            }
+        }
+        while (input.hasRemaining()) {
+            int key = LZWDictionary.key(code, input.get(input.position()));
+            int slot = dictionary.find(key);
+            if (!dictionary.has(slot)) {
+                codeword(slot, key);
+                return true;
+            }
+            code = dictionary.code(slot);
+            t++;
+            input.position(input.position() + 1);
+            bytesRead++;
+        }
+        if (!finish) return false;
+        codeword(-1, -1);                       // the match reaches the end
+        return true;
+    }
+
+    // write the match, and the reset after it if there is one; slot is
+    // where key, the match and the next byte, goes, -1 if there is no
+    // next byte
+    private void codeword(int slot, int key) {
+        write(code, state.W);
+        int next = state.next(t, slot >= 0);
+        if (next >= 0) {
+            dictionary.add(slot, key, next);
+        } else if (next == LZWState.RESET) {
+            dictionary.clear();
+            write(LZWCodec.RESETFLAG, state.W);
+        }
+        code = -1;
+    }
+
+    private void write(int c, int width) {
+        buffer = (buffer << width) | c;
+        N += width;
+    }
+
+    // move whole bytes of buffer to out while there is room
+    private void drain(ByteBuffer out) {
+        while (N >= 8 && out.hasRemaining()) {
+            N -= 8;
+            out.put((byte) (buffer >>> N));
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*************************************************************************
+ *  Compilation:  javac LZWFile.java
+ *
+ *  Container format written by MyLZW.compress:
+ *
+ *    header   magic, version, initial width, max width, mode, length,
+ *             which is -1 when the writer did not know it in advance
+ *             (LZWOutputStream) and the index gives it instead;
+ *             the mode byte has LSB_FIRST set when the codewords are
+ *             packed LSB-first in little-endian 64-bit words (version
+ *             3, see LSBCodeOut) rather than MSB-first (BinaryStdOut)
+ *    blocks   per block: raw length, compressed length, CRC32C of the
+ *             raw bytes, then the codewords of the block (see LZWCodec);
+ *             a compressed length of 0 marks a hole, a block of zeros;
+ *             a compressed length of -1 marks a reference to an earlier
+ *             block with the same bytes, followed by that block's frame
+ *             offset instead of codewords
+ *    end      a raw length of -1
+ *    index    per block: frame offset, raw length, compressed length,
+ *             CRC32C; a reference has the entry of the block it refers to
+ *    trailer  index offset, block count, trailer magic
+ *
+ *  All integers are big-endian. Version 2 files, which are always
+ *  MSB-first, are still read. Every block is compressed with a fresh
+ *  dictionary, so blocks can be decoded and verified independently and
+ *  in any order.
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LZWFile {
+    public static final int MAGIC = 0x4C5A5721;          // "LZW!"
+    public static final int TRAILER_MAGIC = 0x4C5A5745;  // "LZWE"
+    public static final int VERSION = 3;                 // 3 adds LSB_FIRST
+    public static final int LSB_FIRST = 0x80;            // flag in the mode byte
+    public static final int BLOCK_SIZE = 1 << 20;        // raw bytes per block
+
+    public static final long UNKNOWN_LENGTH = -1;        // header length of a stream
+
+    static final int HEADER_BYTES = 16;
+    static final int FRAME_BYTES = 12;
+    static final int ENTRY_BYTES = 20;
+    static final int TRAILER_BYTES = 16;
+    static final int END = -1;
+    static final int REF = -1;
+
+    public final int initialWidth;
+    public final int maxWidth;
+    public final int mode;
+    public final boolean lsbFirst;      // codeword layout, see LSBCodeOut
+    public long length;                 // size of the original file in bytes
+    public final List<Block> blocks = new ArrayList<Block>();
+    private long indexOffset;
+
+    // one entry of the index
+    public static final class Block {
+        public long offset;             // of the frame holding its codewords
+        public long rawOffset;          // of the block in the original file
+        public int rawLength;
+        public int compLength;
+        public int crc;                 // CRC32C of the raw bytes
+
+        public long payloadOffset() {
+            return offset + FRAME_BYTES;
+        }
+
+        // all zeros, nothing stored
+        public boolean isHole() {
+            return compLength == 0;
+        }
+    }
+
+    public LZWFile(int mode) {
+        this(mode, false);
+    }
+
+    public LZWFile(int mode, boolean lsbFirst) {
+        this(LZWCodec.INITIALWIDTH, LZWCodec.MAXWIDTH, mode, lsbFirst);
+    }
+
+    private LZWFile(int initialWidth, int maxWidth, int mode, boolean lsbFirst) {
+        this.initialWidth = initialWidth;
+        this.maxWidth = maxWidth;
+        this.mode = mode;
+        this.lsbFirst = lsbFirst;
+    }
+
+   /**
+     * Write the header at the start of the channel, leaving its position
+     * just past the header.
+     */
+    public void writeHeader(SeekableByteChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) initialWidth);
+        header.put((byte) maxWidth);
+        header.put((byte) (lsbFirst ? mode | LSB_FIRST : mode));
+        header.putLong(length);
+        header.flip();
+        out.position(0);
+        writeFully(out, header);
+    }
+
+   /**
+     * Append one compressed block at the channel position and record it
+     * in the index.
+     */
+    public Block writeBlock(SeekableByteChannel out, int rawLength, int crc, byte[] payload, int compLength) throws IOException {
+        Block b = newBlock(out.position(), rawLength, compLength, crc);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+        frame.putInt(rawLength).putInt(compLength).putInt(crc);
+        frame.flip();
+        writeFully(out, frame);
+        writeFully(out, ByteBuffer.wrap(payload, 0, compLength));
+        return b;
+    }
+
+   /**
+     * Append a reference to the earlier block target, which holds the
+     * same bytes, and record it in the index with target's codewords.
+     */
+    public Block writeReference(SeekableByteChannel out, Block target) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES + 8);
+        frame.putInt(target.rawLength).putInt(REF).putInt(target.crc).putLong(target.offset);
+        frame.flip();
+        writeFully(out, frame);
+        return newBlock(target.offset, target.rawLength, target.compLength, target.crc);
+    }
+
+    private Block newBlock(long offset, int rawLength, int compLength, int crc) {
+        Block b = new Block();
+        b.offset = offset;
+        b.rawOffset = blocks.isEmpty() ? 0 : last().rawOffset + last().rawLength;
+        b.rawLength = rawLength;
+        b.compLength = compLength;
+        b.crc = crc;
+        blocks.add(b);
+        return b;
+    }
+
+   /**
+     * Append a hole: a block of rawLength zeros, recorded without a payload.
+     */
+    public Block writeHole(SeekableByteChannel out, int rawLength, int crc) throws IOException {
+        return writeBlock(out, rawLength, crc, new byte[0], 0);
+    }
+
+   /**
+     * Write the end marker, index and trailer at the channel position
+     * and truncate anything after them.
+     */
+    public void writeIndex(SeekableByteChannel out) throws IOException {
+        ByteBuffer end = ByteBuffer.allocate(4).putInt(END);
+        end.flip();
+        writeFully(out, end);
+
+        indexOffset = out.position();
+        ByteBuffer index = ByteBuffer.allocate(blocks.size() * ENTRY_BYTES + TRAILER_BYTES);
+        for (Block b : blocks)
+            index.putLong(b.offset).putInt(b.rawLength).putInt(b.compLength).putInt(b.crc);
+        index.putLong(indexOffset).putInt(blocks.size()).putInt(TRAILER_MAGIC);
+        index.flip();
+        writeFully(out, index);
+        out.truncate(out.position());
+    }
+
+   /**
+     * Read the header and index of the container in the channel.
+     */
+    public static LZWFile open(FileChannel in) throws IOException {
+        return open(in, 0, in.size());
+    }
+
+   /**
+     * Read the header and index of the container stored in the size bytes
+     * of the channel starting at base. Frame offsets in the index are made
+     * relative to the start of the channel.
+     */
+    public static LZWFile open(FileChannel in, long base, long size) throws IOException {
+        LZWFile file = readHeader(in, base);
+
+        ByteBuffer trailer = readFully(in, base + size - TRAILER_BYTES, TRAILER_BYTES);
+        long indexOffset = trailer.getLong();
+        int count = trailer.getInt();
+        if (trailer.getInt() != TRAILER_MAGIC) throw new RuntimeException("Missing MyLZW trailer");
+        if (count < 0 || indexOffset + (long) count * ENTRY_BYTES + TRAILER_BYTES != size)
+            throw new RuntimeException("Corrupt MyLZW index");
+
+        file.indexOffset = base + indexOffset;
+        ByteBuffer index = readFully(in, base + indexOffset, count * ENTRY_BYTES);
+        long rawOffset = 0;
+        for (int i = 0; i < count; i++) {
+            Block b = new Block();
+            b.offset = base + index.getLong();
+            b.rawOffset = rawOffset;
+            b.rawLength = index.getInt();
+            b.compLength = index.getInt();
+            b.crc = index.getInt();
+            rawOffset += b.rawLength;
+            file.blocks.add(b);
+        }
+        if (file.length == UNKNOWN_LENGTH)
+            file.length = rawOffset;
+        else if (rawOffset != file.length)
+            throw new RuntimeException("Index covers " + rawOffset + " bytes, header says " + file.length);
+        return file;
+    }
+
+   /**
+     * Rebuild the index of a container whose writer stopped before writing
+     * its index, from the first count frames, which must end at end.
+     */
+    public static LZWFile recover(FileChannel in, long end, int count) throws IOException {
+        LZWFile file = readHeader(in, 0);
+        Map<Long, Block> byOffset = new HashMap<Long, Block>();
+        long offset = HEADER_BYTES;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer frame = readFully(in, offset, FRAME_BYTES);
+            int rawLength = frame.getInt();
+            int compLength = frame.getInt();
+            int crc = frame.getInt();
+            if (compLength == REF) {
+                Block target = byOffset.get(readFully(in, offset + FRAME_BYTES, 8).getLong());
+                if (target == null) throw new RuntimeException("Dangling reference at " + offset);
+                file.newBlock(target.offset, target.rawLength, target.compLength, target.crc);
+                offset += FRAME_BYTES + 8;
+            } else {
+                if (rawLength < 0 || compLength < 0) throw new RuntimeException("Corrupt frame at " + offset);
+                byOffset.put(offset, file.newBlock(offset, rawLength, compLength, crc));
+                offset += FRAME_BYTES + compLength;
+            }
+        }
+        if (offset != end) throw new RuntimeException("Frames end at " + offset + ", expected " + end);
+        file.length = file.blocks.isEmpty() ? 0 : file.last().rawOffset + file.last().rawLength;
+        return file;
+    }
+
+    private static LZWFile readHeader(FileChannel in, long base) throws IOException {
+        return readHeader(readFully(in, base, HEADER_BYTES));
+    }
+
+   /**
+     * Parse the HEADER_BYTES of a header from the position of header.
+     */
+    static LZWFile readHeader(ByteBuffer header) {
+        if (header.getInt() != MAGIC) throw new RuntimeException("Not a MyLZW file");
+        int version = header.get();
+        if (version != 2 && version != VERSION) throw new RuntimeException("Unsupported MyLZW format version " + version);
+        int initialWidth = header.get();
+        int maxWidth = header.get();
+        int mode = header.get() & 0xff;
+        boolean lsbFirst = version >= 3 && (mode & LSB_FIRST) != 0;
+        LZWFile file = new LZWFile(initialWidth, maxWidth, lsbFirst ? mode & ~LSB_FIRST : mode, lsbFirst);
+        file.length = header.getLong();
+        if (file.initialWidth < 9 || file.maxWidth > LZWCodec.MAXWIDTH || file.initialWidth > file.maxWidth)
+            throw new RuntimeException("Illegal code widths " + file.initialWidth + "-" + file.maxWidth);
+        if (file.mode < LZWCodec.MODE_NOTHING || file.mode > LZWCodec.MODE_MONITOR)
+            throw new RuntimeException("Unknown mode " + file.mode);
+        return file;
+    }
+
+    // position of the end marker, where appended blocks start
+    public long endOffset() {
+        return indexOffset - 4;
+    }
+
+    // largest raw block, for sizing decode buffers
+    public int maxRawLength() {
+        int max = 0;
+        for (Block b : blocks)
+            max = Math.max(max, b.rawLength);
+        return max;
+    }
+
+    private Block last() {
+        return blocks.get(blocks.size() - 1);
+    }
+
+    public static ByteBuffer readFully(FileChannel in, long position, int n) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(n);
+        while (buf.hasRemaining()) {
+            if (in.read(buf, position + buf.position()) < 0) throw new EOFException("Truncated MyLZW file");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    public static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            out.write(buf);
+    }
+}
@@ -0,0 +1,194 @@
+/*************************************************************************
+ *  Compilation:  javac LZWInputStream.java
+ *  Dependencies: LZWFile.java LZWDecompressor.java LZWCodec.java
+ *
+ *  An input stream filter that expands a MyLZW file (see LZWFile) as
+ *  it is read, front to back, without seeking: the output of
+ *  LZWOutputStream, or of MyLZW - without --dedup. Frames are read
+ *  and decoded one at a time as the caller asks for bytes, so the
+ *  stream holds one block and its codewords at most, and a read
+ *  returns as soon as the first block has arrived and checked out,
+ *  with the bytes of that block only rather than waiting to fill the
+ *  caller's array. Nothing is read from the underlying stream until
+ *  the first read.
+ *
+ *  After the end marker the index and trailer are read past, so the
+ *  underlying stream is left just after the MyLZW file.
+ *
+ *************************************************************************/
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+public class LZWInputStream extends FilterInputStream {
+    private LZWFile file;               // the header, once read
+    private final CRC32C crc = new CRC32C();
+    private final byte[] frame = new byte[LZWFile.HEADER_BYTES];
+    private byte[] block = new byte[0]; // the current block, decoded
+    private int pos;
+    private int limit;
+    private byte[] payload = new byte[0];
+    private int blocks;                 // frames read so far
+    private long length;                // bytes in them
+    private boolean eof;
+    private boolean closed;
+
+    public LZWInputStream(InputStream in) {
+        super(in);
+    }
+
+    public int read() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return block[pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+        if (pos == limit && !fill()) return -1;
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && (pos < limit || fill())) {
+            int k = (int) Math.min(n - skipped, limit - pos);
+            pos += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+   /**
+     * The bytes left in the current block, which can be read without
+     * blocking.
+     */
+    public int available() throws IOException {
+        ensureOpen();
+        return limit - pos;
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    public void mark(int readlimit) {
+    }
+
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        in.close();
+    }
+
+    // decode the next block that has any bytes; false at the end
+    private boolean fill() throws IOException {
+        ensureOpen();
+        if (file == null) {
+            readFully(frame, LZWFile.HEADER_BYTES);
+            try {
+                file = LZWFile.readHeader(ByteBuffer.wrap(frame));
+            } catch (RuntimeException ex) {
+                throw new IOException(ex.getMessage());
+            }
+        }
+        while (!eof) {
+            readFully(frame, 4);
+            int rawLength = ByteBuffer.wrap(frame).getInt();
+            if (rawLength == LZWFile.END) {
+                readIndex();
+                eof = true;
+                break;
+            }
+            readFully(frame, LZWFile.FRAME_BYTES - 4);
+            ByteBuffer f = ByteBuffer.wrap(frame);
+            int compLength = f.getInt();
+            int checksum = f.getInt();
+            if (compLength == LZWFile.REF)
+                throw new IOException("block " + blocks + ": a reference to an earlier block cannot be read from a stream");
+            if (rawLength < 0 || rawLength > LZWFile.BLOCK_SIZE
+                    || compLength < 0 || compLength > LZWCompressor.maxCompressedLength(rawLength))
+                throw new IOException("Corrupt MyLZW frame " + blocks);
+
+            if (block.length < rawLength) block = new byte[rawLength];
+            if (compLength == 0) {
+                Arrays.fill(block, 0, rawLength, (byte) 0);
+            } else {
+                if (payload.length < compLength) payload = new byte[compLength];
+                readFully(payload, compLength);
+                decode(compLength, rawLength);
+            }
+            crc.reset();
+            crc.update(block, 0, rawLength);
+            if ((int) crc.getValue() != checksum)
+                throw new IOException("block " + blocks + ": checksum mismatch");
+
+            blocks++;
+            length += rawLength;
+            pos = 0;
+            limit = rawLength;
+            if (rawLength > 0) return true;
+        }
+        return false;
+    }
+
+    // decode the payload of the current frame into its rawLength bytes
+    private void decode(int compLength, int rawLength) throws IOException {
+        try {
+            int n;
+            if (!file.lsbFirst && file.initialWidth == LZWCodec.INITIALWIDTH && file.maxWidth == LZWCodec.MAXWIDTH) {
+                n = LZWDecompressor.forThread(file.mode).decompress(payload, 0, compLength, block, 0, rawLength);
+            } else {
+                ByteBuffer out = ByteBuffer.wrap(block, 0, rawLength);
+                LZWCodec.decode(ByteBuffer.wrap(payload, 0, compLength), file.lsbFirst,
+                                file.mode, file.initialWidth, file.maxWidth, out);
+                n = out.position();
+            }
+            if (n != rawLength) throw new RuntimeException("Block shorter than its recorded length");
+        } catch (RuntimeException ex) {
+            throw new IOException("block " + blocks + ": " + ex.getMessage());
+        }
+    }
+
+    // read past the index and check the trailer
+    private void readIndex() throws IOException {
+        byte[] buf = block.length > frame.length ? block : frame;
+        long index = (long) blocks * LZWFile.ENTRY_BYTES;
+        while (index > 0) {
+            int n = (int) Math.min(index, buf.length);
+            readFully(buf, n);
+            index -= n;
+        }
+        readFully(frame, LZWFile.TRAILER_BYTES);
+        ByteBuffer trailer = ByteBuffer.wrap(frame);
+        trailer.getLong();
+        if (trailer.getInt() != blocks || trailer.getInt() != LZWFile.TRAILER_MAGIC)
+            throw new IOException("Corrupt MyLZW trailer");
+        if (file.length != LZWFile.UNKNOWN_LENGTH && file.length != length)
+            throw new IOException("Blocks hold " + length + " bytes, header says " + file.length);
+    }
+
+    private void readFully(byte[] b, int n) throws IOException {
+        for (int k = 0; k < n; ) {
+            int r = in.read(b, k, n - k);
+            if (r < 0) throw new EOFException("Truncated MyLZW stream");
+            k += r;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+    }
+}
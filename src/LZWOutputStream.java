@@ -0,0 +1,199 @@
+/*************************************************************************
+ *  Compilation:  javac LZWOutputStream.java
+ *  Dependencies: LZWFile.java LZWCompressor.java LZWCodec.java
+ *
+ *  An output stream filter that compresses what is written through it
+ *  into a MyLZW file (see LZWFile), which MyLZW + or LZWInputStream
+ *  expands. Bytes collect in a block of blockSize, and each full block
+ *  goes out as one frame, so the stream holds one block and its
+ *  codewords however much passes through it. Only the index, a few
+ *  dozen bytes per block, grows with the stream; it is written by finish.
+ *
+ *  The length in the header is LZWFile.UNKNOWN_LENGTH, since nothing
+ *  is written twice. Blocks are smaller than MyLZW's by default, so a
+ *  reader gets its first bytes sooner, and flush sends the partial
+ *  block on its way as a short one; every block starts a new
+ *  dictionary, so flushing after every few bytes costs compression.
+ *  Blocks of zeros become holes; there are no references to earlier
+ *  blocks, which a reader could not follow without seeking back.
+ *
+ *************************************************************************/
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.zip.CRC32C;
+
+public class LZWOutputStream extends FilterOutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+
+    private final LZWFile file;
+    private final StreamChannel channel;
+    private final CRC32C crc = new CRC32C();
+    private final byte[] block;         // bytes not yet compressed
+    private int count;
+    private final byte[] payload;       // codewords of the block going out
+    private boolean finished;
+    private boolean closed;
+
+    public LZWOutputStream(OutputStream out, int mode) throws IOException {
+        this(out, mode, DEFAULT_BLOCK_SIZE);
+    }
+
+   /**
+     * Compress in mode (LZWCodec.MODE_NOTHING, MODE_RESET or
+     * MODE_MONITOR) into blocks of blockSize bytes, at most
+     * LZWFile.BLOCK_SIZE, writing the header to out now.
+     */
+    public LZWOutputStream(OutputStream out, int mode, int blockSize) throws IOException {
+        super(out);
+        if (blockSize < 1 || blockSize > LZWFile.BLOCK_SIZE)
+            throw new IllegalArgumentException("Block size " + blockSize + " not between 1 and " + LZWFile.BLOCK_SIZE);
+        file = new LZWFile(mode);
+        file.length = LZWFile.UNKNOWN_LENGTH;
+        channel = new StreamChannel(out);
+        block = new byte[blockSize];
+        payload = new byte[LZWCompressor.maxCompressedLength(blockSize)];
+        file.writeHeader(channel);
+    }
+
+    public void write(int b) throws IOException {
+        ensureOpen();
+        block[count++] = (byte) b;
+        if (count == block.length) writeBlock();
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        while (len > 0) {
+            if (count == 0 && len >= block.length) {
+                // a whole block in the caller's array: compress it in place
+                writeBlock(b, off, block.length);
+                off += block.length;
+                len -= block.length;
+                continue;
+            }
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == block.length) writeBlock();
+        }
+    }
+
+   /**
+     * Write the bytes so far as a block, even a short one, and flush the
+     * underlying stream, so a reader can decode everything written.
+     */
+    public void flush() throws IOException {
+        ensureOpen();
+        if (count > 0) writeBlock();
+        out.flush();
+    }
+
+   /**
+     * Write the last block, the end marker and the index, leaving the
+     * underlying stream open. Nothing more can be written.
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        if (count > 0) writeBlock();
+        file.writeIndex(channel);
+        finished = true;
+    }
+
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        writeBlock(block, 0, count);
+        count = 0;
+    }
+
+    private void writeBlock(byte[] b, int off, int n) throws IOException {
+        crc.reset();
+        crc.update(b, off, n);
+        if (isZero(b, off, n)) {
+            file.writeHole(channel, n, (int) crc.getValue());
+        } else {
+            int length = LZWCompressor.forThread(file.mode).compress(b, off, n, payload, 0);
+            file.writeBlock(channel, n, (int) crc.getValue(), payload, length);
+        }
+    }
+
+    private static boolean isZero(byte[] b, int off, int n) {
+        for (int i = off; i < off + n; i++)
+            if (b[i] != 0) return false;
+        return true;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) throw new IOException("Stream finished");
+    }
+
+    // the stream as the channel LZWFile writes to: it only moves forward,
+    // so seeking and truncating are allowed only to where it already is
+    private static final class StreamChannel implements SeekableByteChannel {
+        private final OutputStream out;
+        private long position;
+
+        StreamChannel(OutputStream out) {
+            this.out = out;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            if (src.hasArray()) {
+                out.write(src.array(), src.arrayOffset() + src.position(), n);
+                src.position(src.limit());
+            } else {
+                byte[] b = new byte[n];
+                src.get(b);
+                out.write(b);
+            }
+            position += n;
+            return n;
+        }
+
+        public int read(ByteBuffer dst) {
+            throw new NonReadableChannelException();
+        }
+
+        public long position() {
+            return position;
+        }
+
+        public StreamChannel position(long newPosition) throws IOException {
+            if (newPosition != position) throw new IOException("Cannot seek in an output stream");
+            return this;
+        }
+
+        public long size() {
+            return position;
+        }
+
+        public StreamChannel truncate(long size) throws IOException {
+            if (size < position) throw new IOException("Cannot truncate an output stream");
+            return this;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+}
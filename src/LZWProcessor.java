@@ -0,0 +1,290 @@
+/*************************************************************************
+ *  Compilation:  javac LZWProcessor.java
+ *  Dependencies: LZWEncoder.java LZWDecoder.java
+ *
+ *  A java.util.concurrent.Flow.Processor that compresses (compressor)
+ *  or expands (expander) a stream of ByteBuffers with LZWEncoder or
+ *  LZWDecoder, in the format they share: one LZWCodec block, MSB-first.
+ *
+ *  Nothing blocks and no thread belongs to a stream. Every signal just
+ *  notes what happened and schedules a run on the executor, and runs of
+ *  one processor are serialized by a counter of signals not yet seen,
+ *  so many processors share a few threads. A run turns input into
+ *  output only while the subscriber has demand, asks upstream for one
+ *  item at a time and only when the codec has used up the last, and
+ *  fills at most BATCH buffers before giving the thread back. So what
+ *  a processor holds is one input item and one output buffer however
+ *  fast either side is.
+ *
+ *  A buffer goes downstream when it is full, when the codec waits for
+ *  input (so output is never held back for want of more), and at the
+ *  end. Subscribers that are done with a buffer can hand it back with
+ *  release, and it is filled again; the rest are left to the garbage
+ *  collector.
+ *
+ *************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LZWProcessor implements Flow.Processor<ByteBuffer, ByteBuffer> {
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    private static final int POOL = 4;       // spare buffers kept for reuse
+    private static final int BATCH = 16;     // buffers filled per run
+
+    // LZWEncoder or LZWDecoder
+    private interface Codec {
+        void setInput(ByteBuffer in);
+        boolean needsInput();
+        void finish();                        // the input has ended
+        int run(ByteBuffer out);
+        boolean finished();
+    }
+
+    private final Codec codec;
+    private final Executor executor;
+    private final int bufferSize;
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    // signals, from any thread
+    private volatile Flow.Subscription upstream;
+    private volatile Flow.Subscriber<? super ByteBuffer> downstream;
+    private final Queue<ByteBuffer> items = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicLong demand = new AtomicLong();
+    private volatile boolean upstreamDone;
+    private volatile Throwable error;
+    private volatile boolean cancelled;
+    private final AtomicInteger wip = new AtomicInteger();
+
+    // state of the runs, which never overlap
+    private boolean started;              // downstream has had onSubscribe
+    private boolean done;                 // a terminal signal has gone downstream
+    private int outstanding;              // items requested, not yet taken
+    private boolean finishing;            // codec.finish called
+    private ByteBuffer out;
+
+    private LZWProcessor(Codec codec, Executor executor, int bufferSize) {
+        if (bufferSize < 1) throw new IllegalArgumentException("Buffer size " + bufferSize);
+        this.codec = codec;
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+    }
+
+    public static LZWProcessor compressor(int mode) {
+        return compressor(mode, ForkJoinPool.commonPool(), DEFAULT_BUFFER_SIZE);
+    }
+
+   /**
+     * Compress in mode, running on executor and sending buffers of
+     * bufferSize bytes downstream.
+     */
+    public static LZWProcessor compressor(int mode, Executor executor, int bufferSize) {
+        LZWEncoder encoder = new LZWEncoder(mode);
+        return new LZWProcessor(new Codec() {
+            public void setInput(ByteBuffer in) { encoder.setInput(in); }
+            public boolean needsInput()         { return encoder.needsInput(); }
+            public void finish()                { encoder.finish(); }
+            public int run(ByteBuffer out)      { return encoder.compress(out); }
+            public boolean finished()           { return encoder.finished(); }
+        }, executor, bufferSize);
+    }
+
+    public static LZWProcessor expander(int mode) {
+        return expander(mode, ForkJoinPool.commonPool(), DEFAULT_BUFFER_SIZE);
+    }
+
+   /**
+     * Expand what a compressor in mode sent, running on executor and
+     * sending buffers of bufferSize bytes downstream. Input after the
+     * end of the block is ignored.
+     */
+    public static LZWProcessor expander(int mode, Executor executor, int bufferSize) {
+        LZWDecoder decoder = new LZWDecoder(mode);
+        return new LZWProcessor(new Codec() {
+            public void setInput(ByteBuffer in) { decoder.setInput(in); }
+            public boolean needsInput()         { return decoder.needsInput(); }
+            public void finish()                { throw new RuntimeException("Truncated LZW stream"); }
+            public int run(ByteBuffer out)      { return decoder.decompress(out); }
+            public boolean finished()           { return decoder.finished(); }
+        }, executor, bufferSize);
+    }
+
+   /**
+     * Hand back a buffer this processor sent downstream, once nothing
+     * refers to it any more, to be filled again.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize && pool.size() < POOL) pool.offer(buffer);
+    }
+
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (subscriber == null) throw new NullPointerException();
+        synchronized (this) {
+            if (downstream == null) {
+                downstream = subscriber;
+                schedule();
+                return;
+            }
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            public void request(long n) { }
+            public void cancel() { }
+        });
+        subscriber.onError(new IllegalStateException("LZWProcessor already has a subscriber"));
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (upstream == null && !cancelled) {
+                upstream = subscription;
+                schedule();
+                return;
+            }
+        }
+        subscription.cancel();
+    }
+
+    public void onNext(ByteBuffer item) {
+        items.offer(item);
+        schedule();
+    }
+
+    public void onError(Throwable throwable) {
+        error = throwable;
+        upstreamDone = true;
+        schedule();
+    }
+
+    public void onComplete() {
+        upstreamDone = true;
+        schedule();
+    }
+
+    // the subscription handed downstream
+    private final Flow.Subscription subscription = new Flow.Subscription() {
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Non-positive request " + n);
+                cancelled = true;
+            } else {
+                demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            }
+            schedule();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+    };
+
+    private void schedule() {
+        if (wip.getAndIncrement() == 0) executor.execute(this::run);
+    }
+
+    // drain the signals counted in wip, and any that arrive meanwhile
+    private void run() {
+        int missed = wip.get();
+        while (true) {
+            if (!work()) {                      // batch used up: run again later
+                executor.execute(this::run);
+                return;
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) return;
+        }
+    }
+
+    // false if it stopped with work left
+    private boolean work() {
+        if (done) return true;
+        Flow.Subscriber<? super ByteBuffer> subscriber = downstream;
+        if (subscriber == null) return true;
+        if (!started) {
+            started = true;
+            subscriber.onSubscribe(subscription);
+        }
+        if (cancelled || error != null) {
+            Throwable e = error;
+            terminate();
+            if (e != null) subscriber.onError(e);
+            return true;
+        }
+
+        try {
+            for (int filled = 0; demand.get() > 0; ) {
+                if (filled == BATCH) return false;
+                if (out == null) {
+                    out = pool.poll();
+                    if (out == null) out = ByteBuffer.allocate(bufferSize);
+                    out.clear();
+                }
+                if (codec.needsInput()) {
+                    boolean ended = upstreamDone;          // before the poll: onNext comes first
+                    ByteBuffer item = items.poll();
+                    if (item != null) {
+                        outstanding--;
+                        codec.setInput(item);
+                        continue;
+                    }
+                    if (!ended) {
+                        if (out.position() > 0) {              // nothing more for now
+                            emit(subscriber);
+                            filled++;
+                            continue;
+                        }
+                        Flow.Subscription s = upstream;
+                        if (s != null && outstanding == 0) {
+                            outstanding++;
+                            s.request(1);
+                        }
+                        break;
+                    }
+                    if (!finishing) {
+                        finishing = true;
+                        codec.finish();
+                    }
+                }
+                codec.run(out);
+                if (codec.finished()) {
+                    if (out.position() > 0) emit(subscriber);
+                    terminate();
+                    subscriber.onComplete();
+                    return true;
+                }
+                if (!out.hasRemaining()) {
+                    emit(subscriber);
+                    filled++;
+                }
+            }
+        } catch (RuntimeException ex) {
+            terminate();
+            subscriber.onError(ex);
+        }
+        return true;
+    }
+
+    private void emit(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        ByteBuffer b = out;
+        out = null;
+        b.flip();
+        demand.decrementAndGet();
+        subscriber.onNext(b);
+    }
+
+    // stop for good, cancelling upstream unless it has ended
+    private void terminate() {
+        done = true;
+        Flow.Subscription s = upstream;
+        if (s != null && !upstreamDone) s.cancel();
+        items.clear();
+        pool.clear();
+        out = null;
+    }
+}
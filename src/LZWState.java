@@ -0,0 +1,101 @@
+/*************************************************************************
+ *  Compilation:  javac LZWState.java
+ *  Dependencies: LZWCodec.java
+ *
+ *  The decisions every MyLZW encoder and decoder makes after each
+ *  codeword: the code the dictionary defines next, when codewords grow
+ *  a bit wider, and once the dictionary is full, whether to keep it
+ *  (mode n), reset it (mode r) or, in mode m, watch the compression
+ *  ratio and reset once it degrades by COMPRESSION_RATIO_THRESHOLD.
+ *  Keeping them in one place is what lets the encoders and decoders
+ *  agree on the width of every codeword.
+ *
+ *  The bit counts behind the ratio are ints that wrap, as they always
+ *  have, so a block of any length is decoded with the decisions it was
+ *  encoded with.
+ *
+ *************************************************************************/
+
+public class LZWState {
+    public static final int NONE = -1;     // next defined no code
+    public static final int RESET = -2;    // next reset the dictionary
+
+    public final int mode;
+    public final int initialWidth;
+    public final int maxWidth;
+
+    int W;                  // width of the next codeword
+    int L;                  // codes of width W
+    int freeCode;           // next code to define
+
+    private int bitsUncompressed;
+    private int bitsCompressed;
+    private double startingCompressionRatio;
+    private double ratioOfRatios;
+    private boolean monitor;
+
+    public LZWState(int mode) {
+        this(mode, LZWCodec.INITIALWIDTH, LZWCodec.MAXWIDTH);
+    }
+
+    public LZWState(int mode, int initialWidth, int maxWidth) {
+        if (mode < LZWCodec.MODE_NOTHING || mode > LZWCodec.MODE_MONITOR)
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        this.mode = mode;
+        this.initialWidth = initialWidth;
+        this.maxWidth = maxWidth;
+        reset();
+    }
+
+   /**
+     * Start a new block.
+     */
+    public void reset() {
+        W = initialWidth;
+        L = 1 << W;
+        freeCode = LZWCodec.RESETFLAG+1;
+        bitsUncompressed = 0;
+        bitsCompressed = 0;
+        startingCompressionRatio = 1;
+        ratioOfRatios = 1;
+        monitor = false;
+    }
+
+   /**
+     * Account for a codeword of the current width standing for n bytes,
+     * and decide what comes after it. An encoder passes define false
+     * for the last codeword of a block, which has no next byte to make
+     * a new code with; a decoder always passes true.
+     * @return the code the dictionary defines next, NONE if it defines
+     *         none, or RESET if it starts over, in which case RESETFLAG
+     *         follows at the new width
+     */
+    public int next(int n, boolean define) {
+        bitsCompressed += W;
+        bitsUncompressed += n * 8;
+        if (!monitor)
+            startingCompressionRatio = bitsUncompressed / bitsCompressed;
+        else {
+            double curCompressionRatio = (double) bitsUncompressed / bitsCompressed;
+            ratioOfRatios = startingCompressionRatio/curCompressionRatio;
+        }
+
+        if (freeCode < L) {
+            return define ? freeCode++ : NONE;
+        } else if (W < maxWidth) {
+            W++;
+            L = 1 << W;
+            return define ? freeCode++ : NONE;
+        } else if (mode == LZWCodec.MODE_MONITOR && ratioOfRatios < LZWCodec.COMPRESSION_RATIO_THRESHOLD) {
+            monitor = true;
+            return NONE;
+        } else if (mode != LZWCodec.MODE_NOTHING) {
+            monitor = false;
+            W = initialWidth;
+            L = 1 << W;
+            freeCode = LZWCodec.RESETFLAG+1;
+            return RESET;
+        }
+        return NONE;
+    }
+}
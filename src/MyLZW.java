@@ -1,211 +1,730 @@
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
 
 public class MyLZW {
-	private static final int MAXWIDTH = 16;   
-	private static final int INITIALWIDTH = 9;       
-    private static final int ASCII = 256;        
-    private static final int RESETFLAG = 257;    
-
-   
-    private static final double COMPRESSION_RATIO_THRESHOLD = 1.1; 
-    
-    public static void main(String[] args) { 
-        if (args.length != 3 && args[0].equals("+")) {
-          System.out.println("+/- mode <file1> <outputFile>");
-          System.exit(1);
-        } else if (args[0].equals("-")) {
-          compress(new String(args[1]), new File(args[2]), new File(args[3]));
-        } else if (args[0].equals("+")) {
-          expand(new File(args[1]), new File(args[2]));
+    private static final int OUTPUT_CHUNK = 1 << 16;  // stream path buffer
+    private static final long MAP_WINDOW = 1 << 30;   // largest mapping of the output
+    private static final byte[] ZEROS = new byte[LZWFile.BLOCK_SIZE];
+
+    public static void main(String[] args) {
+        int status = run(args);
+        if (status != 0) System.exit(status);
+    }
+
+   /**
+     * Run one command line, as main does.
+     * @return the exit status: 0, or 1 for usage or a failed command
+     */
+    public static int run(String[] args) {
+        Options options = new Options();
+        List<String> operands = new ArrayList<String>();
+        long daemonMemory = 0;
+      try {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--daemon") && i + 1 < args.length) {   // the rest runs in the daemon
+                List<String> rest = new ArrayList<String>(Arrays.asList(args));
+                rest.subList(i, i + 2).clear();
+                return LZWDaemon.forward(args[i + 1], rest.toArray(new String[0]));
+            }
+            else if (arg.equals("--checkpoint")) options.checkpoint = true;
+            else if (arg.equals("--resume"))     options.resume = true;
+            else if (arg.equals("--dedup"))      options.dedup = true;
+            else if (arg.equals("--mmap"))       options.mapped = true;
+            else if (arg.equals("--async"))      options.async = true;
+            else if (arg.equals("--pipeline"))   options.pipeline = true;
+            else if (arg.equals("--stats"))      options.stats = true;
+            else if (arg.equals("--lsb"))        options.lsb = true;
+            else if (arg.equals("--incremental")) options.incremental = true;
+            else if (arg.equals("--cache") && i + 1 < args.length)     options.cache = new File(args[++i]);
+            else if (arg.equals("--cache-max") && i + 1 < args.length) options.cacheMaxBytes = megabytes(arg, args[++i]);
+            else if (arg.equals("--read-limit") && i + 1 < args.length)  options.readLimit = new TokenBucket(megabytes(arg, args[++i]));
+            else if (arg.equals("--write-limit") && i + 1 < args.length) options.writeLimit = new TokenBucket(megabytes(arg, args[++i]));
+            else if (arg.equals("--memory") && i + 1 < args.length)      daemonMemory = megabytes(arg, args[++i]);
+            else                                 operands.add(arg);
+        }
+      } catch (IllegalArgumentException ex) {
+        System.err.println(ex.getMessage());
+        usage();
+        return 1;
+      }
+        args = operands.toArray(new String[0]);
+
+        if (args.length == 4 && args[0].equals("-")) {
+          if (!compress(new String(args[1]), new File(args[2]), new File(args[3]), options)) return 1;
+        } else if (args.length == 3 && args[0].equals("+")) {
+          if (!expand(new File(args[1]), new File(args[2]), options)) return 1;
+        } else if (args.length == 3 && args[0].equals("append")) {
+          if (!append(new File(args[1]), new File(args[2]))) return 1;
+        } else if (args.length == 2 && args[0].equals("test")) {
+          if (!test(new File(args[1]))) return 1;
+        } else if (args.length == 4 && args[0].equals("archive")) {
+          if (!archive(args[1], new File(args[2]), new File(args[3]), options)) return 1;
+        } else if ((args.length == 3 || args.length == 4) && args[0].equals("extract")) {
+          if (!extract(new File(args[1]), new File(args[2]), args.length == 4 ? args[3] : null)) return 1;
+        } else if (args.length == 2 && args[0].equals("list")) {
+          if (!list(new File(args[1]))) return 1;
+        } else if (args.length == 2 && args[0].equals("cache")) {
+          if (!cacheStats(new File(args[1]), options)) return 1;
+        } else if (args.length == 2 && args[0].equals("daemon")) {
+          return LZWDaemon.serve(args[1], daemonMemory);
         } else {
-          System.out.println("Make sure to enter - or + for compress and decompress");
-          System.exit(1);
+          usage();
+          return 1;
         }
+        return 0;
+    }
+
+    private static void usage() {
+        System.out.println("- <n|r|m> <file1> <outputFile> [--checkpoint] [--resume] [--dedup] [--lsb] [--mmap] [--async] [--pipeline [--stats]] [--cache <dir> [--cache-max <MB>]] [--read-limit <MB/s>] [--write-limit <MB/s>]");
+        System.out.println("+ <file1> <outputFile> [--async] [--pipeline [--stats]] [--read-limit <MB/s>] [--write-limit <MB/s>]");
+        System.out.println("append <file1> <compressedFile>");
+        System.out.println("test <file1>");
+        System.out.println("archive <n|r|m> <directory> <archiveFile> [--incremental]");
+        System.out.println("extract <archiveFile> <directory> [member]");
+        System.out.println("list <archiveFile>");
+        System.out.println("cache <dir>");
+        System.out.println("daemon <socketPath> [--memory <MB>]");
+        System.out.println("--daemon <socketPath> <any of the above | daemon-stats | daemon-stop>");
+    }
+
+    // value, a positive and possibly fractional number of MB (or MB/s),
+    // in bytes
+    private static long megabytes(String option, String value) {
+        double mb;
+        try {
+            mb = Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(option + ": not a number: " + value);
+        }
+        if (mb >= (double) (Long.MAX_VALUE >> 20))
+            throw new IllegalArgumentException(option + ": too large: " + value);
+        long bytes = mb > 0 ? Math.round(mb * (1 << 20)) : 0;
+        if (bytes < 1) throw new IllegalArgumentException(option + ": must be a positive number of MB: " + value);
+        return bytes;
+    }
+
+    // whether option arg is followed by a value
+    static boolean takesValue(String arg) {
+        return arg.equals("--cache") || arg.equals("--cache-max") || arg.equals("--read-limit")
+            || arg.equals("--write-limit") || arg.equals("--memory") || arg.equals("--daemon");
+    }
+
+    public static boolean archive(String modeSelect, File dir, File archiveFile) {
+        return archive(modeSelect, dir, archiveFile, new Options());
     }
-    
-    public static void compress(String modeSelect, File inFile, File outFile) {
-    	int W = INITIALWIDTH;
-    	int L = (int) Math.pow(2, W);
+
+    public static boolean archive(String modeSelect, File dir, File archiveFile, Options options) {
       try {
-        BinaryStdIn binaryIn = new BinaryStdIn(new FileInputStream(inFile));
-        BinaryStdOut binaryOut = new BinaryStdOut(new PrintStream(new FileOutputStream(outFile)));
-        int bitsUncompressed = 0;
-        int bitsCompressed = 0;
-        double startingCompressionRatio = 1;
-        double curCompressionRatio =1;
-        double ratioOfRatios = 1;
-        
-        boolean monitor = false;
-          
-        switch (modeSelect){ 
-        case "n":
-        	binaryOut.write(0, 2);
-        	break;
-        case "r":
-                binaryOut.write(1,2);
-                break;
-        case "m":
-        	binaryOut.write(2,2);
-        	break;
-        }
-             
-        String input = binaryIn.readString();
-       
-        TST<Integer> symbol = new TST<Integer>();
-        for (int i = 0; i < ASCII; i++)
-        	symbol.put("" + (char) i, i);
-        int freeCode = RESETFLAG+1; 
-
-
-        while (input.length() > 0) {
-        	String longestPrefix = symbol.longestPrefixOf(input);
-        	int code = symbol.get(longestPrefix); 
-        
-                binaryOut.write(code, W);
-        	bitsCompressed += W; 
-        	
-        	int t = longestPrefix.length();
-        	bitsUncompressed += t * 8;
-        	
-        	if(!monitor)
-        		startingCompressionRatio = bitsUncompressed / bitsCompressed;
-        	else {
-        		curCompressionRatio = (double) bitsUncompressed / bitsCompressed;
-        		ratioOfRatios = startingCompressionRatio/curCompressionRatio;
-        	}
-        	
-        	if (freeCode < L){ 
-        		if (t < input.length()){
-        			symbol.put(input.substring(0, t+1), freeCode++); 
-        		}
-        	}	else if ( W < MAXWIDTH){ 
-        		W++;
-        		L=(int) Math.pow(2, W);
-        		if (t < input.length())
-        			symbol.put(input.substring(0, t+1), freeCode++);
-        	} else {                    
-        		switch (modeSelect) {
-        		case "m":
-        			monitor = true;
-        			if ( ratioOfRatios < COMPRESSION_RATIO_THRESHOLD){
-        				break; 
-        			} else {
-        				monitor = false;  
-        			}
-        			
-        		case "r":
-                    symbol = new TST<Integer>();
-        			W = INITIALWIDTH;
-        			L = (int) Math.pow(2, W);
-        			for (int i = 0 ; i < ASCII; i++)
-        				symbol.put("" + (char) i, i);
-        			freeCode = RESETFLAG+1;
-        			binaryOut.write(RESETFLAG, W);
-        		case "n":
-        			break;
-        		}
-        	}
-        	input = input.substring(t);
-        }
-        binaryOut.write(ASCII, W);
-        binaryOut.close();
-      } catch (FileNotFoundException ex) {
+        if (options.incremental) LZWArchive.update(modeSelect, dir, archiveFile);
+        else                     LZWArchive.create(modeSelect, dir, archiveFile);
+        return true;
+      } catch (IOException | RuntimeException ex) {
         System.err.println(ex.getMessage());
+        return false;
       }
-    } 
-
-
-    public static void expand(File inFile, File outFile) {
-    	int R = ASCII;
-    	int W = INITIALWIDTH;
-    	int L = (int) Math.pow(2, W);
-        
-        int bitsUncompressed = 0;
-        int bitsCompressed = 0;
-        double startingCompressionRatio = 1;
-        double curCompressionRatio =1;
-        double ratioOfRatios = 1;
-        boolean monitor = false;
-        
+    }
+
+    public static boolean extract(File archiveFile, File dir, String member) {
+      try {
+        LZWArchive.extract(archiveFile, dir, member);
+        return true;
+      } catch (IOException | RuntimeException ex) {
+        System.err.println(ex.getMessage());
+        return false;
+      }
+    }
+
+    public static boolean list(File archiveFile) {
       try {
-        BinaryStdIn binaryIn = new BinaryStdIn(new FileInputStream(inFile));
-        BinaryStdOut binaryOut = new BinaryStdOut(new PrintStream(new FileOutputStream(outFile)));
-
-        String[] symbol = new String[(int)Math.pow(2,MAXWIDTH+1)];
-        int i;
-        for (i = 0; i < R; i++)
-        	symbol[i] = "" + (char) i;
-        symbol[i++] = "";
-        int flag = binaryIn.readInt(2);
-        int codeword = binaryIn.readInt(W);
-        String val = symbol[codeword];
-        int t = val.length();
-        bitsUncompressed += t * 8;
-        
-        i++;
-
-        while (true) {           
-            binaryOut.write(val);
-            codeword = binaryIn.readInt(W);            
-            
-            bitsCompressed += W;
-            t = val.length();
-            bitsUncompressed += t * 8;
-            
-            if (codeword == R) break;
-            String s = symbol[codeword];
-            if (i == codeword) s = val + val.charAt(0);  
-            
-            if (i == (L-1) && W < MAXWIDTH) {
-                W++;
-                s = symbol[codeword];
-                L = (int) Math.pow(2, W);
-            }
-            
-            if (flag == 1 && (W == MAXWIDTH) && (i == (L-1))) {
-                W = INITIALWIDTH;
-                L = (int) Math.pow(2, W);
-                symbol = new String[(int)Math.pow(2,MAXWIDTH+1)];
-                for (i = 0; i < R; i++)
-                	symbol[i] = "" + (char) i;
-                symbol[i++] = ""; 
-                codeword = binaryIn.readInt(W);
-                val = symbol[codeword];
-                i--;
-            }
-            
-            if (flag == 2 && (W == MAXWIDTH) && (i == (L-1))) {
-                monitor = true; 
-            }
-            if(!monitor)
-        		startingCompressionRatio = bitsUncompressed / bitsCompressed;
-            else if (flag == 2){
-        		curCompressionRatio = (double) bitsUncompressed / bitsCompressed;
-        		ratioOfRatios = startingCompressionRatio/curCompressionRatio;                 
-                if ( ratioOfRatios > 1.1 ){
-                	monitor = false;
-                	W = INITIALWIDTH;
-                	L = (int) Math.pow(2, W);
-                	symbol = new String[(int)Math.pow(2,MAXWIDTH+1)];
-                    for (i = 0; i < R; i++)
-                    	symbol[i] = "" + (char) i;
-                    symbol[i++] = "";
-                    codeword = binaryIn.readInt(W);
-                    val = symbol[codeword];
-                    i--;                      
-        		}          
-            }
-          if (i < L) symbol[i++] = val + s.charAt(0);
-          val = s;        
-        }
-        binaryIn.close();
-        binaryOut.close();
-      } catch (FileNotFoundException ex) {
+        LZWArchive.list(archiveFile);
+        return true;
+      } catch (IOException | RuntimeException ex) {
+        System.err.println(ex.getMessage());
+        return false;
+      }
+    }
+
+    public static boolean cacheStats(File dir, Options options) {
+      try {
+        new LZWCache(dir, options.cacheMaxBytes).printStats();
+        return true;
+      } catch (IOException | RuntimeException ex) {
+        System.err.println(ex.getMessage());
+        return false;
+      }
+    }
+
+   /**
+     * Optional behaviour of compress.
+     */
+    public static class Options {
+        public boolean checkpoint;   // save a Checkpoint every Checkpoint.INTERVAL blocks
+        public boolean resume;       // continue from the last Checkpoint, if there is one
+        public boolean dedup;        // content-defined chunks, repeats stored as references
+        public boolean mapped;       // read the input through mapped windows, not a buffer
+        public boolean async;        // overlap reads and writes with the codec (AsyncFileReader/Writer)
+        public boolean pipeline;     // reader, codec and writer on their own threads (Pipeline)
+        public boolean stats;        // print the Pipeline's stage and queue metrics to stderr
+        public boolean lsb;          // pack codewords LSB-first in 64-bit words (LSBCodeOut)
+        public TokenBucket readLimit;  // input bandwidth, or null for none; rate adjustable while running
+        public TokenBucket writeLimit; // output bandwidth, or null for none
+        public boolean incremental;  // archive: reuse the unchanged members of an existing archive
+        public File cache;           // LZWCache directory, or null for none
+        public long cacheMaxBytes = LZWCache.DEFAULT_MAX_BYTES;
+    }
+
+    public static boolean compress(String modeSelect, File inFile, File outFile) {
+        return compress(modeSelect, inFile, outFile, new Options());
+    }
+
+    public static boolean compress(String modeSelect, File inFile, File outFile, Options options) {
+      try {
+        int mode = modeCode(modeSelect);
+
+        // a checkpointed run writes its output as it goes, so it is never cached
+        LZWCache cache = null;
+        File entry = null;
+        if (options.cache != null && !options.checkpoint && !options.resume) {
+            cache = new LZWCache(options.cache, options.cacheMaxBytes);
+            entry = cache.entry(inFile, mode, options.dedup, options.lsb);
+            if (cache.fetch(entry, outFile)) return true;
+        }
+
+        Checkpoint checkpoint = null;
+        if (options.checkpoint || options.resume) checkpoint = new Checkpoint(outFile);
+        boolean resume = options.resume && checkpoint.exists();
+        if (resume) {
+            checkpoint.read();
+            if (checkpoint.inputLength != inFile.length() || checkpoint.inputModified != inFile.lastModified()
+                    || checkpoint.mode != mode)
+                throw new RuntimeException("Checkpoint " + checkpoint + " does not match " + inFile);
+        }
+
+        // every channel is closed however the run ends, a daemon's
+        // requests included
+        try (FileChannel in = new FileInputStream(inFile).getChannel();
+             FileChannel out = resume ? new RandomAccessFile(outFile, "rw").getChannel()
+                                      : new FileOutputStream(outFile).getChannel()) {
+            LZWFile file;
+            if (resume) {
+                file = LZWFile.recover(out, checkpoint.outputOffset, checkpoint.blocks);
+                in.position(checkpoint.inputOffset);
+                out.position(checkpoint.outputOffset);
+            } else {
+                file = new LZWFile(mode, options.lsb);
+                file.writeHeader(out);
+            }
+            if (checkpoint != null) {
+                checkpoint.inputLength = inFile.length();
+                checkpoint.inputModified = inFile.lastModified();
+                checkpoint.mode = mode;
+            }
+
+            // with async, reads run ahead of the encoder and writes behind it;
+            // a read limit needs the input read through a channel, not mapped
+            boolean mapped = options.mapped && options.readLimit == null;
+            try (AsyncFileReader reader = options.async && !mapped
+                                        ? new AsyncFileReader(inFile.toPath(), in.position()) : null;
+                 AsyncFileWriter writer = options.async ? new AsyncFileWriter(outFile.toPath(), out.position()) : null) {
+                ReadableByteChannel source = reader != null ? reader : in;
+                if (options.readLimit != null) source = new ThrottledChannel(source, options.readLimit);
+                Chunker chunker = mapped ? new Chunker(in, options.dedup, true)
+                                         : new Chunker(source, in.position(), options.dedup, false);
+                SeekableByteChannel sink = writer != null ? writer : out;
+                if (options.writeLimit != null) sink = new ThrottledChannel(sink, options.writeLimit);
+
+                Dedup dedup = options.dedup ? new Dedup() : null;
+                if (options.pipeline) {
+                    Pipeline pipeline = new Pipeline();
+                    file.length += pipeline.compress(chunker, sink, file, dedup, checkpoint);
+                    if (options.stats) System.err.print(pipeline.report());
+                } else {
+                    file.length += compressBlocks(chunker, sink, file, dedup, checkpoint, null);
+                }
+                file.writeIndex(sink);
+                file.writeHeader(sink);
+            }
+        }
+        if (checkpoint != null) checkpoint.delete();
+        if (cache != null) cache.store(entry, outFile);
+        return true;
+      } catch (IOException ex) {
+        System.err.println(ex.getMessage());
+      } catch (RuntimeException ex) {
+        System.err.println(inFile + ": " + ex.getMessage());
+      }
+        return false;
+    }
+
+   /**
+     * Compress inFile into new blocks at the end of the existing compressed
+     * file outFile. Earlier blocks are neither decoded nor rewritten; only
+     * the end marker, index, trailer and header length are replaced. If
+     * that fails partway, outFile is put back as it was.
+     */
+    public static boolean append(File inFile, File outFile) {
+      try (FileChannel in = new FileInputStream(inFile).getChannel();
+           RandomAccessFile raf = new RandomAccessFile(outFile, "rw")) {
+        append(in, raf.getChannel());
+        return true;
+      } catch (IOException ex) {
+        System.err.println(ex.getMessage());
+      } catch (RuntimeException ex) {
+        System.err.println(outFile + ": " + ex.getMessage());
+      }
+        return false;
+    }
+
+    // compress the rest of in as new blocks of the MyLZW file in out; the
+    // new blocks overwrite the old end marker, index and trailer, so on
+    // failure out is cut back to its old blocks and their index, trailer
+    // and header are written again
+    private static void append(FileChannel in, FileChannel out) throws IOException {
+        LZWFile file = LZWFile.open(out);
+        int count = file.blocks.size();
+        long length = file.length;
+        long end = file.endOffset();
+        out.position(end);
+        try {
+            file.length += compressBlocks(new Chunker(in, false), out, file, null, null, null);
+            file.writeIndex(out);
+            file.writeHeader(out);
+        } catch (IOException | RuntimeException ex) {
+            file.blocks.subList(count, file.blocks.size()).clear();
+            file.length = length;
+            try {
+                out.position(end);
+                file.writeIndex(out);
+                file.writeHeader(out);
+            } catch (IOException | RuntimeException restore) {
+                ex.addSuppressed(restore);
+            }
+            throw ex;
+        }
+    }
+
+    // compress the rest of in into a complete MyLZW file written to out,
+    // returning the number of raw bytes compressed; digest, if not null,
+    // is updated with those bytes
+    static long compress(FileChannel in, SeekableByteChannel out, int mode, MessageDigest digest)
+            throws IOException {
+        LZWFile file = new LZWFile(mode);
+        file.writeHeader(out);
+        file.length += compressBlocks(new Chunker(in, false), out, file, null, null, digest);
+        file.writeIndex(out);
+        file.writeHeader(out);
+        return file.length;
+    }
+
+    // compress the chunks left in chunker as blocks at the position of
+    // out, returning the number of raw bytes compressed; with dedup,
+    // repeated chunks become references (chunker should then be content-
+    // defined); saves
+    // checkpoint, if not null, every Checkpoint.INTERVAL blocks and
+    // updates digest, if not null, with the raw bytes
+    private static long compressBlocks(Chunker chunker, SeekableByteChannel out, LZWFile file, Dedup dedup,
+                                       Checkpoint checkpoint, MessageDigest digest) throws IOException {
+        ByteArrayChannel codes = new ByteArrayChannel(LZWFile.BLOCK_SIZE);
+        ByteBuffer staging = ByteBuffer.allocateDirect(BinaryStdOut.DEFAULT_BUFFER_SIZE);
+        CRC32C crc = new CRC32C();
+        long total = 0;
+        ByteBuffer block;
+        while ((block = chunker.next()).hasRemaining()) {
+            int n = block.remaining();
+            crc.reset();
+            crc.update(block.duplicate());
+            if (digest != null) digest.update(block.duplicate());
+            total += n;
+            LZWFile.Block earlier;
+            if (block.mismatch(ByteBuffer.wrap(ZEROS, 0, n)) == -1) {
+                file.writeHole(out, n, (int) crc.getValue());
+            } else if (dedup != null && (earlier = dedup.find(block, (int) crc.getValue())) != null) {
+                file.writeReference(out, earlier);
+            } else {
+                encodeBlock(file, block, codes, staging);
+                LZWFile.Block b = file.writeBlock(out, n, (int) crc.getValue(), codes.array(), (int) codes.size());
+                if (dedup != null) dedup.add(b);
+            }
+            if (checkpoint != null && file.blocks.size() % Checkpoint.INTERVAL == 0)
+                checkpoint.save(chunker.position(), out, file);
+        }
+        return total;
+    }
+
+    // replace the contents of codes with block encoded in file's mode and
+    // codeword layout by a pooled LZWCompressor, staging LSB-first
+    // codewords in staging
+    static void encodeBlock(LZWFile file, ByteBuffer block, ByteArrayChannel codes, ByteBuffer staging) {
+        codes.truncate(0).position(0);
+        LZWCompressor compressor = LZWCompressor.acquire(file.mode);
+        try {
+            if (file.lsbFirst) compressor.compress(block.duplicate(), new LSBCodeOut(codes, staging));
+            else               compressor.compress(block.duplicate(), codes);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            compressor.release();
+        }
+    }
+
+    public static boolean expand(File inFile, File outFile) {
+        return expand(inFile, outFile, true);
+    }
+
+    // a bandwidth limit takes the stream path, whose reads and writes all
+    // go through the limited channels
+    public static boolean expand(File inFile, File outFile, Options options) {
+        boolean limited = options.readLimit != null || options.writeLimit != null;
+        if (!options.async && !options.pipeline && !limited)
+            return expand(inFile, outFile, true);
+        boolean started = false;
+      try (FileChannel in = new FileInputStream(inFile).getChannel()) {
+        LZWFile file = LZWFile.open(in);
+        started = true;
+        if (limited) {
+            try (RandomAccessFile raf = new RandomAccessFile(outFile, "rw")) {
+                raf.setLength(0);
+                expandStream(in, file, raf.getChannel(), options.readLimit, options.writeLimit);
+                raf.setLength(file.length);
+            }
+        } else if (options.pipeline) {
+            Pipeline pipeline = new Pipeline();
+            try (RandomAccessFile raf = new RandomAccessFile(outFile, "rw")) {
+                raf.setLength(0);
+                pipeline.expand(in, file, raf.getChannel());
+                raf.setLength(file.length);
+            }
+            if (options.stats) System.err.print(pipeline.report());
+        } else {
+            expandAsync(inFile.toPath(), file, outFile);
+        }
+        return true;
+      } catch (IOException ex) {
+        System.err.println(ex.getMessage());
+      } catch (RuntimeException ex) {
+        System.err.println(inFile + ": " + ex.getMessage());
+      }
+        if (started) outFile.delete();        // nothing half-written is left behind
+        return false;
+    }
+
+    // decode into a memory-mapped, preallocated output file when mapped is
+    // true, otherwise stream the output through BinaryStdOut; either way
+    // holes are skipped, leaving the output sparse
+    public static boolean expand(File inFile, File outFile, boolean mapped) {
+        boolean started = false;
+      try (FileChannel in = new FileInputStream(inFile).getChannel()) {
+        LZWFile file = LZWFile.open(in);
+        started = true;
+        expand(in, file, outFile, mapped, true);
+        return true;
+      } catch (IOException ex) {
         System.err.println(ex.getMessage());
-      } 
+      } catch (RuntimeException ex) {
+        System.err.println(inFile + ": " + ex.getMessage());
+      }
+        if (started) outFile.delete();        // nothing half-written is left behind
+        return false;
+    }
+
+    // decode file, whose frames are read from in, into outFile; parallel
+    // lets the mapped path decode several blocks at once
+    static void expand(FileChannel in, LZWFile file, File outFile, boolean mapped, boolean parallel)
+            throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(outFile, "rw")) {
+            raf.setLength(0);
+            if (mapped) {
+                raf.setLength(file.length);
+                expandMapped(in, file, raf.getChannel(), parallel);
+            } else {
+                expandStream(in, file, raf.getChannel(), null, null);
+                raf.setLength(file.length);
+            }
+        }
+    }
+
+    // decode file, whose frames are read from in, through BinaryStdOut
+    // into channel, skipping holes; the payloads read are charged to
+    // readLimit and the output goes through writeLimit, either of which
+    // may be null for no limit
+    private static void expandStream(FileChannel in, LZWFile file, FileChannel channel,
+                                     TokenBucket readLimit, TokenBucket writeLimit) throws IOException {
+        WritableByteChannel sink = writeLimit == null ? channel : new ThrottledChannel(channel, writeLimit);
+        BinaryStdOut binaryOut = new BinaryStdOut(sink, ByteBuffer.allocateDirect(OUTPUT_CHUNK));
+        ByteBuffer out = ByteBuffer.allocate(Math.max(file.maxRawLength(), OUTPUT_CHUNK));
+        for (int i = 0; i < file.blocks.size(); i++) {
+            LZWFile.Block b = file.blocks.get(i);
+            if (b.isHole()) {
+                binaryOut.flush();
+                channel.position(b.rawOffset + b.rawLength);
+                continue;
+            }
+            if (readLimit != null) readLimit.acquire(b.compLength);
+            out.clear().limit(b.rawLength);
+            decodeBlock(in, file, i, out);
+            out.flip();
+            binaryOut.write(out);
+        }
+        binaryOut.flush();
+    }
+
+    // the stream path with its I/O overlapped: the payload of the next
+    // block is read while this one decodes, and output is written behind
+    private static void expandAsync(Path inPath, LZWFile file, File outFile) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
+             AsynchronousFileChannel input = AsynchronousFileChannel.open(inPath, StandardOpenOption.READ)) {
+            raf.setLength(0);
+            try (AsyncFileWriter output = new AsyncFileWriter(outFile.toPath(), 0)) {
+                BinaryStdOut binaryOut = new BinaryStdOut(output, ByteBuffer.allocate(OUTPUT_CHUNK));
+                ByteBuffer out = ByteBuffer.allocate(Math.max(file.maxRawLength(), OUTPUT_CHUNK));
+                int maxPayload = 0;
+                for (LZWFile.Block b : file.blocks)
+                    if (!b.isHole()) maxPayload = Math.max(maxPayload, b.compLength);
+                ByteBuffer[] payloads = { ByteBuffer.allocateDirect(maxPayload), ByteBuffer.allocateDirect(maxPayload) };
+
+                int slot = 0;
+                int ahead = nextPayload(file, 0);
+                Future<Integer> pending = ahead < 0 ? null : startRead(input, file.blocks.get(ahead), payloads[slot]);
+                for (int i = 0; i < file.blocks.size(); i++) {
+                    LZWFile.Block b = file.blocks.get(i);
+                    if (b.isHole()) {
+                        binaryOut.flush();
+                        output.position(b.rawOffset + b.rawLength);
+                        continue;
+                    }
+                    ByteBuffer payload = payloads[slot];
+                    finishRead(input, b, payload, pending);
+                    slot ^= 1;
+                    ahead = nextPayload(file, i + 1);
+                    pending = ahead < 0 ? null : startRead(input, file.blocks.get(ahead), payloads[slot]);
+
+                    out.clear().limit(b.rawLength);
+                    decodeBlock(file, i, payload, out);
+                    out.flip();
+                    binaryOut.write(out);
+                }
+                binaryOut.flush();
+            }
+            raf.setLength(file.length);         // once every write has finished
+        }
+    }
+
+    // index of the first block at or after i that has a payload, or -1
+    private static int nextPayload(LZWFile file, int i) {
+        while (i < file.blocks.size() && file.blocks.get(i).isHole()) i++;
+        return i < file.blocks.size() ? i : -1;
+    }
+
+    private static Future<Integer> startRead(AsynchronousFileChannel input, LZWFile.Block b, ByteBuffer payload) {
+        payload.clear().limit(b.compLength);
+        return input.read(payload, b.payloadOffset());
+    }
+
+    // wait for the read of b's payload, complete it if it was short, and flip it
+    private static void finishRead(AsynchronousFileChannel input, LZWFile.Block b, ByteBuffer payload,
+                                   Future<Integer> pending) throws IOException {
+        AsyncFileReader.await(pending);
+        while (payload.hasRemaining())
+            if (AsyncFileReader.await(input.read(payload, b.payloadOffset() + payload.position())) < 0)
+                throw new RuntimeException("Truncated block at " + b.offset);
+        payload.flip();
+    }
+
+    // map the output a window of whole blocks at a time and decode the
+    // blocks of each window into it, in parallel if parallel is set
+    private static void expandMapped(final FileChannel in, final LZWFile file, FileChannel out, boolean parallel)
+            throws IOException {
+        List<LZWFile.Block> blocks = file.blocks;
+        int first = 0;
+        while (first < blocks.size()) {
+            final long start = blocks.get(first).rawOffset;
+            int last = first;
+            while (last + 1 < blocks.size()
+                    && blocks.get(last + 1).rawOffset + blocks.get(last + 1).rawLength - start <= MAP_WINDOW)
+                last++;
+            LZWFile.Block end = blocks.get(last);
+            final MappedByteBuffer window = out.map(FileChannel.MapMode.READ_WRITE, start,
+                                                    end.rawOffset + end.rawLength - start);
+
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int i = first; i <= last; i++) {
+                final int block = i;
+                if (blocks.get(i).isHole()) continue;
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        LZWFile.Block b = file.blocks.get(block);
+                        ByteBuffer slice = window.duplicate();
+                        slice.position((int) (b.rawOffset - start));
+                        slice.limit(slice.position() + b.rawLength);
+                        decodeBlock(in, file, block, slice);
+                        return null;
+                    }
+                });
+            }
+            runAll(tasks, parallel);
+            first = last + 1;
+        }
+    }
+
+   /**
+     * Decode every block of inFile into a scratch buffer and check it
+     * against its CRC32C, writing nothing. Blocks are checked in parallel.
+     * @return true if every block is intact
+     */
+    public static boolean test(File inFile) {
+      try (FileChannel in = new FileInputStream(inFile).getChannel()) {
+        final LZWFile file = LZWFile.open(in);
+        final int scratchSize = file.maxRawLength();
+        final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocate(scratchSize);
+            }
+        };
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < file.blocks.size(); i++) {
+            final int block = i;
+            tasks.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    ByteBuffer out = scratch.get();
+                    out.clear();
+                    out.limit(file.blocks.get(block).rawLength);
+                    decodeBlock(in, file, block, out);
+                    return null;
+                }
+            });
+        }
+        List<String> failures = runParallel(tasks, false);
+        for (String failure : failures)
+            System.err.println(inFile + ": " + failure);
+        if (failures.isEmpty())
+            System.out.println(inFile + ": OK (" + file.blocks.size() + " blocks, " + file.length + " bytes)");
+        return failures.isEmpty();
+      } catch (IOException ex) {
+        System.err.println(ex.getMessage());
+        return false;
+      } catch (RuntimeException ex) {
+        System.err.println(inFile + ": " + ex.getMessage());
+        return false;
+      }
+    }
+
+    // decode block i of file into the remaining space of out and verify it
+    private static void decodeBlock(FileChannel in, LZWFile file, int i, ByteBuffer out) throws IOException {
+        LZWFile.Block b = file.blocks.get(i);
+        decodeBlock(file, i, b.isHole() ? null : LZWFile.readFully(in, b.payloadOffset(), b.compLength), out);
+    }
+
+    // decode block i of file from payload, null for a hole, into the
+    // remaining space of out and verify it
+    static void decodeBlock(LZWFile file, int i, ByteBuffer payload, ByteBuffer out) {
+        LZWFile.Block b = file.blocks.get(i);
+        int start = out.position();
+        if (b.isHole()) {
+            out.put(ZEROS, 0, b.rawLength);
+        } else {
+            try {
+                if (file.lsbFirst || file.initialWidth != LZWCodec.INITIALWIDTH || file.maxWidth != LZWCodec.MAXWIDTH) {
+                    LZWCodec.decode(payload, file.lsbFirst, file.mode, file.initialWidth, file.maxWidth, out);
+                } else {
+                    LZWDecompressor decompressor = LZWDecompressor.acquire(file.mode);
+                    try {
+                        decompressor.decompress(payload.duplicate(), out);
+                    } finally {
+                        decompressor.release();
+                    }
+                    if (out.hasRemaining()) throw new RuntimeException("Block shorter than its recorded length");
+                }
+            } catch (RuntimeException ex) {
+                throw new RuntimeException("block " + i + ": " + ex.getMessage());
+            }
+        }
+
+        ByteBuffer raw = out.duplicate();
+        raw.position(start);
+        raw.limit(out.position());
+        CRC32C crc = new CRC32C();
+        crc.update(raw);
+        if ((int) crc.getValue() != b.crc)
+            throw new RuntimeException("block " + i + ": checksum mismatch");
+    }
+
+    // run tasks, on all cores if parallel is set, stopping at the first failure
+    private static void runAll(List<Callable<Void>> tasks, boolean parallel) throws IOException {
+        if (!parallel) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (IOException | RuntimeException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            return;
+        }
+        List<String> failures = runParallel(tasks, true);
+        if (!failures.isEmpty()) throw new RuntimeException(failures.get(0));
+    }
+
+    // run tasks on all cores, returning the failure messages; stops at the
+    // first failure when failFast is set
+    static List<String> runParallel(List<Callable<Void>> tasks, boolean failFast) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<String> failures = new ArrayList<String>();
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (Callable<Void> task : tasks)
+                futures.add(pool.submit(task));
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    failures.add(cause.getMessage());
+                    if (failFast) break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+        return failures;
+    }
+
+    static int modeCode(String modeSelect) {
+        switch (modeSelect) {
+        case "n": return LZWCodec.MODE_NOTHING;
+        case "r": return LZWCodec.MODE_RESET;
+        case "m": return LZWCodec.MODE_MONITOR;
+        default:  throw new RuntimeException("Unknown mode " + modeSelect);
+        }
     }
-}
\ No newline at end of file
+}
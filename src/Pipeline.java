@@ -0,0 +1,397 @@
+/*************************************************************************
+ *  Compilation:  javac Pipeline.java
+ *  Dependencies: MyLZW.java Chunker.java LZWFile.java BinaryStdOut.java
+ *                ByteArrayChannel.java Dedup.java Checkpoint.java
+ *
+ *  Runs MyLZW compress and expand as three stages on their own threads:
+ *  a reader that fills buffers from the input, the codec that runs the
+ *  LZW loop over them, and a writer that drains what the codec produced.
+ *  Consecutive stages are joined by a Ring, a bounded queue of slots
+ *  whose byte arrays are handed back to the producer once consumed, so
+ *  nothing is allocated per block after the first few blocks. While the
+ *  reader and writer are waiting on storage the codec keeps working on
+ *  the blocks already queued.
+ *
+ *  Each stage records how long it spent waiting on its rings, and each
+ *  ring how full it was; report() summarises both after a run. A codec
+ *  near 100% busy with a full input ring and an empty output ring means
+ *  storage is keeping up; a starved codec points at the reader or writer.
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32C;
+
+public class Pipeline {
+    public static final int DEPTH = 4;        // slots in each ring
+
+    private static final int BLOCK = 0, HOLE = 1, REF = 2;
+    private static final byte[] ZEROS = new byte[LZWFile.BLOCK_SIZE];
+
+    private final int depth;
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private final List<Ring> rings = new ArrayList<Ring>();
+    private volatile Throwable failure;
+
+    public Pipeline() {
+        this(DEPTH);
+    }
+
+    public Pipeline(int depth) {
+        if (depth < 1) throw new IllegalArgumentException("Depth must be positive");
+        this.depth = depth;
+    }
+
+    // a buffer travelling between two stages
+    private static final class Slot {
+        byte[] data = new byte[0];
+        int length;                     // of data in use; -1 marks the end
+        ByteArrayChannel codes;         // compress: the codewords of data
+        int kind;
+        int crc;
+        int index;                      // expand: of the block in the file
+        long end;                       // compress: input position after the block
+        LZWFile.Block block;            // compress: reference target, or the block to fill in
+
+        ByteBuffer data(int n) {
+            if (data.length < n) data = new byte[n];
+            length = n;
+            return ByteBuffer.wrap(data, 0, n);
+        }
+    }
+
+    // one thread's share of the work
+    private static final class Stage {
+        final String name;
+        long start, end, waiting;
+        int items;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        double utilization() {
+            long wall = end - start;
+            return wall <= 0 ? 0 : 1 - (double) waiting / wall;
+        }
+    }
+
+   /**
+     * A bounded queue of full slots between a producer and a consumer,
+     * with the empty slots going back the other way.
+     */
+    private static final class Ring {
+        final String name;
+        final int capacity;
+        private final BlockingQueue<Slot> full;
+        private final BlockingQueue<Slot> free;
+        long depthSum;
+        int samples, maxDepth;
+
+        Ring(String name, int capacity) {
+            this.name = name;
+            this.capacity = capacity;
+            full = new ArrayBlockingQueue<Slot>(capacity);
+            free = new ArrayBlockingQueue<Slot>(capacity);
+            for (int i = 0; i < capacity; i++)
+                free.add(new Slot());
+        }
+
+        // an empty slot for the producer, waiting while the consumer is behind
+        Slot acquire(Stage stage) throws InterruptedException {
+            long t = System.nanoTime();
+            Slot s = free.take();
+            stage.waiting += System.nanoTime() - t;
+            return s;
+        }
+
+        void put(Slot s) throws InterruptedException {
+            full.put(s);
+            sample();
+        }
+
+        // the next full slot for the consumer, waiting while the producer is behind
+        Slot take(Stage stage) throws InterruptedException {
+            sample();
+            long t = System.nanoTime();
+            Slot s = full.take();
+            stage.waiting += System.nanoTime() - t;
+            return s;
+        }
+
+        void release(Slot s) {
+            free.add(s);
+        }
+
+        private synchronized void sample() {
+            int d = full.size();
+            depthSum += d;
+            samples++;
+            maxDepth = Math.max(maxDepth, d);
+        }
+
+        synchronized double averageDepth() {
+            return samples == 0 ? 0 : (double) depthSum / samples;
+        }
+    }
+
+    // the work of one stage
+    private interface Body {
+        void run(Stage stage) throws IOException, InterruptedException;
+    }
+
+   /**
+     * Compress the chunks left in chunker as blocks at the position of
+     * out, as MyLZW.compress does on one thread, and return the number of
+     * raw bytes compressed. With dedup, repeated chunks become references;
+     * checkpoint, if not null, is saved every Checkpoint.INTERVAL blocks.
+     */
+    public long compress(final Chunker chunker, final SeekableByteChannel out, final LZWFile file,
+                         final Dedup dedup, final Checkpoint checkpoint) throws IOException {
+        final Ring raw = ring("raw");
+        final Ring coded = ring("coded");
+        final long[] total = new long[1];
+
+        Body reader = new Body() {
+            public void run(Stage stage) throws IOException, InterruptedException {
+                while (true) {
+                    Slot s = raw.acquire(stage);
+                    ByteBuffer block = chunker.next();
+                    s.data(block.remaining()).put(block);
+                    s.end = chunker.position();
+                    if (s.length == 0) s.length = -1;
+                    raw.put(s);
+                    if (s.length < 0) return;
+                    stage.items++;
+                }
+            }
+        };
+
+        Body codec = new Body() {
+            private final ByteBuffer staging = ByteBuffer.allocateDirect(BinaryStdOut.DEFAULT_BUFFER_SIZE);
+            private final CRC32C crc = new CRC32C();
+
+            public void run(Stage stage) throws IOException, InterruptedException {
+                while (true) {
+                    Slot in = raw.take(stage);
+                    Slot s = coded.acquire(stage);
+                    s.length = in.length;
+                    s.end = in.end;
+                    s.block = null;
+                    if (in.length >= 0) encode(in, s);
+                    raw.release(in);
+                    coded.put(s);
+                    if (s.length < 0) return;
+                    stage.items++;
+                }
+            }
+
+            private void encode(Slot in, Slot s) throws IOException {
+                ByteBuffer block = ByteBuffer.wrap(in.data, 0, in.length);
+                crc.reset();
+                crc.update(block.duplicate());
+                s.crc = (int) crc.getValue();
+                if (block.mismatch(ByteBuffer.wrap(ZEROS, 0, in.length)) == -1) {
+                    s.kind = HOLE;
+                } else if (dedup != null && (s.block = dedup.find(block, s.crc)) != null) {
+                    s.kind = REF;
+                } else {
+                    s.kind = BLOCK;
+                    if (s.codes == null) s.codes = new ByteArrayChannel(LZWFile.BLOCK_SIZE);
+                    MyLZW.encodeBlock(file, block, s.codes, staging);
+
+                    // the writer fills in where it lands; later references
+                    // to it reach the writer after it has done so
+                    if (dedup != null) {
+                        s.block = new LZWFile.Block();
+                        s.block.rawLength = in.length;
+                        s.block.crc = s.crc;
+                        dedup.add(s.block);
+                    }
+                }
+            }
+        };
+
+        Body writer = new Body() {
+            public void run(Stage stage) throws IOException, InterruptedException {
+                while (true) {
+                    Slot s = coded.take(stage);
+                    if (s.length < 0) {
+                        coded.release(s);
+                        return;
+                    }
+                    if (s.kind == HOLE) {
+                        file.writeHole(out, s.length, s.crc);
+                    } else if (s.kind == REF) {
+                        file.writeReference(out, s.block);
+                    } else {
+                        LZWFile.Block b = file.writeBlock(out, s.length, s.crc, s.codes.array(), (int) s.codes.size());
+                        if (s.block != null) {
+                            s.block.offset = b.offset;
+                            s.block.compLength = b.compLength;
+                        }
+                    }
+                    total[0] += s.length;
+                    coded.release(s);
+                    stage.items++;
+                    if (checkpoint != null && file.blocks.size() % Checkpoint.INTERVAL == 0)
+                        checkpoint.save(s.end, out, file);
+                }
+            }
+        };
+
+        run(reader, codec, writer);
+        return total[0];
+    }
+
+   /**
+     * Decode every block of file, whose frames are read from in, into out
+     * at the blocks' raw offsets, verifying each against its CRC32C. Holes
+     * are skipped, so the caller sets the final length of out.
+     */
+    public void expand(final FileChannel in, final LZWFile file, final FileChannel out) throws IOException {
+        final Ring payloads = ring("payload");
+        final Ring decoded = ring("decoded");
+
+        Body reader = new Body() {
+            public void run(Stage stage) throws IOException, InterruptedException {
+                for (int i = 0; i <= file.blocks.size(); i++) {
+                    Slot s = payloads.acquire(stage);
+                    s.index = i;
+                    if (i == file.blocks.size()) {
+                        s.length = -1;
+                    } else {
+                        LZWFile.Block b = file.blocks.get(i);
+                        ByteBuffer buf = s.data(b.isHole() ? 0 : b.compLength);
+                        while (buf.hasRemaining())
+                            if (in.read(buf, b.payloadOffset() + buf.position()) < 0)
+                                throw new RuntimeException("block " + i + ": truncated");
+                    }
+                    payloads.put(s);
+                    if (s.length >= 0) stage.items++;
+                }
+            }
+        };
+
+        Body codec = new Body() {
+            public void run(Stage stage) throws IOException, InterruptedException {
+                while (true) {
+                    Slot in = payloads.take(stage);
+                    Slot s = decoded.acquire(stage);
+                    s.index = in.index;
+                    s.length = in.length;
+                    if (in.length >= 0) {
+                        LZWFile.Block b = file.blocks.get(in.index);
+                        ByteBuffer raw = s.data(b.rawLength);
+                        if (!b.isHole())
+                            MyLZW.decodeBlock(file, in.index, ByteBuffer.wrap(in.data, 0, in.length), raw);
+                    }
+                    payloads.release(in);
+                    decoded.put(s);
+                    if (s.length < 0) return;
+                    stage.items++;
+                }
+            }
+        };
+
+        Body writer = new Body() {
+            public void run(Stage stage) throws IOException, InterruptedException {
+                while (true) {
+                    Slot s = decoded.take(stage);
+                    if (s.length < 0) {
+                        decoded.release(s);
+                        return;
+                    }
+                    LZWFile.Block b = file.blocks.get(s.index);
+                    if (!b.isHole()) {
+                        ByteBuffer buf = ByteBuffer.wrap(s.data, 0, s.length);
+                        while (buf.hasRemaining())
+                            out.write(buf, b.rawOffset + buf.position());
+                    }
+                    decoded.release(s);
+                    stage.items++;
+                }
+            }
+        };
+
+        run(reader, codec, writer);
+    }
+
+   /**
+     * Stage utilization and ring occupancy of the last run, one line each.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage s : stages)
+            sb.append(String.format("%-8s %5.1f%% busy, %d blocks, %.3f s waiting%n",
+                                    s.name, 100 * s.utilization(), s.items, s.waiting / 1e9));
+        for (Ring r : rings)
+            sb.append(String.format("%-8s depth %.2f avg, %d max of %d%n",
+                                    r.name, r.averageDepth(), r.maxDepth, r.capacity));
+        return sb.toString();
+    }
+
+    private Ring ring(String name) {
+        Ring r = new Ring(name, depth);
+        rings.add(r);
+        return r;
+    }
+
+    // run reader, codec and writer on their own threads until all three
+    // finish; the first failure stops the others and is rethrown
+    private void run(Body reader, Body codec, Body writer) throws IOException {
+        stages.clear();
+        failure = null;
+        final List<Thread> threads = new ArrayList<Thread>();
+        String[] names = { "reader", "codec", "writer" };
+        Body[] bodies = { reader, codec, writer };
+        for (int i = 0; i < bodies.length; i++) {
+            final Stage stage = new Stage(names[i]);
+            final Body body = bodies[i];
+            stages.add(stage);
+            threads.add(new Thread("lzw-" + names[i]) {
+                public void run() {
+                    stage.start = System.nanoTime();
+                    try {
+                        body.run(stage);
+                    } catch (InterruptedException ex) {
+                        // stopped because another stage failed
+                    } catch (Throwable ex) {
+                        fail(ex, threads);
+                    }
+                    stage.end = System.nanoTime();
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        try {
+            for (Thread t : threads)
+                t.join();
+        } catch (InterruptedException ex) {
+            fail(ex, threads);
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable ex = failure;
+        if (ex == null) return;
+        if (ex instanceof IOException) throw (IOException) ex;
+        if (ex instanceof RuntimeException) throw (RuntimeException) ex;
+        if (ex instanceof Error) throw (Error) ex;
+        throw new RuntimeException(ex);
+    }
+
+    private synchronized void fail(Throwable ex, List<Thread> threads) {
+        if (failure != null) return;
+        failure = ex instanceof InterruptedException ? new RuntimeException("Interrupted") : ex;
+        for (Thread t : threads)
+            t.interrupt();
+    }
+}
@@ -0,0 +1,104 @@
+/*************************************************************************
+ *  Compilation:  javac ThrottledChannel.java
+ *  Dependencies: TokenBucket.java AsyncFileWriter.java
+ *
+ *  Passes reads or writes through to another channel, charging every
+ *  byte moved to a TokenBucket, so a background MyLZW job can be held to
+ *  a share of the disk's bandwidth. While the bucket is limited each
+ *  call moves at most CHUNK bytes, which turns a large read or write
+ *  into a steady stream instead of a burst followed by a long pause.
+ *  Seeking, truncate and force go straight to the wrapped channel,
+ *  which must be a SeekableByteChannel for them.
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class ThrottledChannel implements SeekableByteChannel {
+    public static final int CHUNK = 1 << 16;
+
+    private final Channel channel;
+    private final TokenBucket bucket;
+
+    public ThrottledChannel(Channel channel, TokenBucket bucket) {
+        this.channel = channel;
+        this.bucket = bucket;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        if (!(channel instanceof ReadableByteChannel)) throw new NonReadableChannelException();
+        int limit = dst.limit();
+        if (bucket.isLimited()) dst.limit(dst.position() + Math.min(dst.remaining(), CHUNK));
+        int n;
+        try {
+            n = ((ReadableByteChannel) channel).read(dst);
+        } finally {
+            dst.limit(limit);
+        }
+        if (n > 0) bucket.acquire(n);
+        return n;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        if (!(channel instanceof WritableByteChannel)) throw new NonWritableChannelException();
+        int limit = src.limit();
+        if (bucket.isLimited()) src.limit(src.position() + Math.min(src.remaining(), CHUNK));
+        int n;
+        try {
+            n = ((WritableByteChannel) channel).write(src);
+        } finally {
+            src.limit(limit);
+        }
+        if (n > 0) bucket.acquire(n);
+        return n;
+    }
+
+    public long position() throws IOException {
+        return seekable().position();
+    }
+
+    public ThrottledChannel position(long newPosition) throws IOException {
+        seekable().position(newPosition);
+        return this;
+    }
+
+    public long size() throws IOException {
+        return seekable().size();
+    }
+
+    public ThrottledChannel truncate(long size) throws IOException {
+        seekable().truncate(size);
+        return this;
+    }
+
+   /**
+     * Force the wrapped channel's writes to the device, if it is a
+     * FileChannel or AsyncFileWriter.
+     */
+    public void force(boolean metaData) throws IOException {
+        if (channel instanceof FileChannel) ((FileChannel) channel).force(metaData);
+        else if (channel instanceof AsyncFileWriter) ((AsyncFileWriter) channel).force(metaData);
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private SeekableByteChannel seekable() {
+        if (!(channel instanceof SeekableByteChannel))
+            throw new UnsupportedOperationException("Not a seekable channel");
+        return (SeekableByteChannel) channel;
+    }
+}
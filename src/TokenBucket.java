@@ -0,0 +1,81 @@
+/*************************************************************************
+ *  Compilation:  javac TokenBucket.java
+ *
+ *  A bandwidth limit in bytes per second. Tokens accrue at the rate up
+ *  to a burst of a tenth of a second's worth; acquire(n) takes n tokens
+ *  and, if that leaves the bucket in debt, sleeps until the debt has
+ *  been paid off, so callers on average move no more than the rate
+ *  however they size their requests. The rate can be changed at any
+ *  time from any thread, including while others are sleeping in
+ *  acquire, and a rate of 0 means no limit: acquire then returns after
+ *  one volatile read.
+ *
+ *************************************************************************/
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+public class TokenBucket {
+    private static final long NANOS = 1000000000L;
+    private static final long MIN_BURST = 1 << 16;
+
+    private volatile long rate;         // bytes per second, 0 for no limit
+    private long burst;                 // most tokens the bucket holds
+    private double tokens;              // negative while in debt
+    private long last;                  // System.nanoTime of the last refill
+
+    public TokenBucket(long bytesPerSecond) {
+        last = System.nanoTime();
+        setRate(bytesPerSecond);
+    }
+
+   /**
+     * Change the limit to bytesPerSecond, 0 for none. Callers waiting in
+     * acquire recompute their wait at the new rate.
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) throw new IllegalArgumentException("Negative rate " + bytesPerSecond);
+        refill();
+        rate = bytesPerSecond;
+        burst = Math.max(MIN_BURST, bytesPerSecond / 10);
+        tokens = bytesPerSecond == 0 ? 0 : Math.min(tokens, burst);
+        notifyAll();
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public boolean isLimited() {
+        return rate != 0;
+    }
+
+   /**
+     * Take n tokens, waiting while the bucket is in debt.
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void acquire(long n) throws IOException {
+        if (rate == 0) return;
+        synchronized (this) {
+            refill();
+            tokens -= n;
+            try {
+                while (tokens < 0 && rate != 0) {
+                    long wait = (long) Math.ceil(-tokens * NANOS / rate);
+                    wait(wait / 1000000, (int) (wait % 1000000));
+                    refill();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for bandwidth");
+            }
+        }
+    }
+
+    // add the tokens earned since the last refill
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate != 0) tokens = Math.min(burst, tokens + (double) (now - last) * rate / NANOS);
+        last = now;
+    }
+}